@@ -0,0 +1,60 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Final step: BagUnionMerger.mergeAndWrite over two fully sorted relations */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BagUnionBench {
+    @Param({"100000", "1000000"})
+    public int records;
+
+    @Param({"0.0", "0.5"})
+    public double dupRatio;
+
+    @Param({"true", "false"})
+    public boolean aggregate;
+
+    private Path dir;
+    private Path t1Sorted;
+    private Path t2Sorted;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        BenchData.silenceEngineLog();
+        dir = BenchData.scratchDir("union");
+        t1Sorted = sort(BenchData.input(records, dupRatio, 0.0), "T1");
+        t2Sorted = sort(BenchData.input(records / 2, dupRatio, 0.0), "T2");
+    }
+
+    private Path sort(Path input, String name) throws Throwable {
+        Object sorter = Engine.newTPMMS(64, Engine.newIOTracker(), aggregate);
+        List<File> runs = Engine.createInitialRuns(sorter, input.toString(), dir.resolve(name).toString());
+        File sorted = Engine.multiPassMerge(sorter, runs, name);
+        return Files.move(sorted.toPath(), dir.resolve(name + ".sorted"));
+    }
+
+    @TearDown(Level.Trial)
+    public void drop() throws Throwable {
+        BenchData.deleteTree(dir);
+    }
+
+    @Benchmark
+    public Object mergeAndWrite() throws Throwable {
+        Path out = dir.resolve("union.txt");
+        try (BufferedWriter bw = Files.newBufferedWriter(out)) {
+            return Engine.mergeAndWrite(t1Sorted, t2Sorted, aggregate, Engine.newIOTracker(), bw);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package bench;
+
+import util.RandomStudentDataGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/** Benchmark inputs built from RandomStudentDataGenerator, shaped by duplicate ratio and presortedness */
+final class BenchData {
+    private static final long SEED = 6521;
+
+    private BenchData() {
+    }
+
+    // file of `records` lines; dupRatio of them repeat earlier lines, presorted of them are left in key order
+    static Path input(int records, double dupRatio, double presorted) throws IOException {
+        Path dir = Files.createDirectories(Path.of(System.getProperty("java.io.tmpdir"), "tpmms-bench"));
+        Path file = dir.resolve("in_" + records + "_" + dupRatio + "_" + presorted + ".txt");
+        if (Files.exists(file)) return file;
+
+        Path raw = dir.resolve("raw_" + records + ".txt");
+        if (!Files.exists(raw)) {
+            RandomStudentDataGenerator.main(new String[]{raw.toString(), Integer.toString(records)});
+        }
+        List<String> lines = new ArrayList<>(Files.readAllLines(raw, StandardCharsets.US_ASCII));
+        Random rnd = new Random(SEED);
+
+        int dups = (int) (lines.size() * dupRatio);
+        for (int i = 0; i < dups; i++) {
+            int to = 1 + rnd.nextInt(lines.size() - 1);
+            lines.set(to, lines.get(rnd.nextInt(to)));
+        }
+
+        if (presorted > 0) {
+            lines.sort(Comparator.naturalOrder());
+            // undo the order for the unsorted share with random swaps
+            int swaps = (int) (lines.size() * (1 - presorted));
+            for (int i = 0; i < swaps; i++) {
+                Collections.swap(lines, rnd.nextInt(lines.size()), rnd.nextInt(lines.size()));
+            }
+        } else {
+            Collections.shuffle(lines, rnd);
+        }
+
+        Files.write(file, lines, StandardCharsets.US_ASCII);
+        return file;
+    }
+
+    static Path scratchDir(String name) throws IOException {
+        return Files.createTempDirectory("tpmms-bench-" + name);
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (var paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    // the engine and the generator log to System.out, keep that out of the benchmark output
+    static void silenceEngineLog() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+}
@@ -0,0 +1,158 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Bridge to the engine classes. They live in the unnamed package, which a packaged class cannot import
+ * (and JMH refuses benchmarks in the unnamed package), so they are bound once through static final
+ * MethodHandles that the JIT inlines like direct calls.
+ */
+final class Engine {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    private static final Class<?> RECORD = load("Record");
+    private static final Class<?> IO_TRACKER = load("IOTracker");
+    private static final Class<?> TPMMS = load("TPMMS");
+    private static final Class<?> BAG_UNION = load("BagUnionMerger");
+    private static final Class<?> MERGE_METRICS = load("MergeMetrics");
+    private static final Class<?> SORT_ALGORITHM = load("RecordArena$SortAlgorithm");
+    private static final Class<?> SET_OPERATOR = load("SetOperator");
+    private static final Class<?> SORT_KEY = load("SortKey");
+    private static final Class<?> RUN_READER = load("RunReader");
+    private static final Class<?> INDEX_BUILDER = load("SparseIndex$Builder");
+
+    private static final MethodHandle NEW_RECORD =
+            constructor(RECORD, methodType(void.class, String.class), methodType(Object.class, String.class));
+    private static final MethodHandle NORMALIZE =
+            staticMethod(RECORD, "normalize", methodType(void.class, String.class, byte[].class, int.class));
+    private static final MethodHandle COMPARE_BYTES =
+            staticMethod(RECORD, "compareBytes", methodType(int.class, byte[].class, byte[].class));
+    private static final MethodHandle PREFIX_KEY =
+            staticMethod(RECORD, "prefixKey", methodType(long.class, byte[].class, int.class));
+    private static final MethodHandle COMPARE_KEYED = staticMethod(RECORD, "compareBytes",
+            methodType(int.class, long.class, byte[].class, int.class, long.class, byte[].class, int.class));
+    private static final MethodHandle NEW_IO_TRACKER =
+            constructor(IO_TRACKER, methodType(void.class), methodType(Object.class));
+    private static final MethodHandle NEW_TPMMS = constructor(TPMMS,
+            methodType(void.class, long.class, IO_TRACKER), methodType(Object.class, long.class, Object.class));
+    private static final MethodHandle SET_AGGREGATE = virtual(TPMMS, "setAggregate",
+            methodType(void.class, boolean.class), methodType(void.class, Object.class, boolean.class));
+    private static final MethodHandle SET_SORT_ALGORITHM = virtual(TPMMS, "setSortAlgorithm",
+            methodType(void.class, SORT_ALGORITHM), methodType(void.class, Object.class, Object.class));
+    private static final MethodHandle CREATE_INITIAL_RUNS = virtual(TPMMS, "createInitialRuns",
+            methodType(List.class, String.class, String.class),
+            methodType(List.class, Object.class, String.class, String.class));
+    private static final MethodHandle MULTI_PASS_MERGE = virtual(TPMMS, "multiPassMerge",
+            methodType(File.class, List.class, String.class),
+            methodType(File.class, Object.class, List.class, String.class));
+    // bag union on the whole record with default buffers and no index, the same merge a plain job runs
+    private static final MethodHandle MERGE_AND_WRITE = MethodHandles.insertArguments(
+            MethodHandles.insertArguments(
+                    MethodHandles.insertArguments(staticMethod(BAG_UNION, "mergeAndWrite",
+                            methodType(MERGE_METRICS, List.class, List.class, int.class, boolean.class, SET_OPERATOR,
+                                    SORT_KEY, IO_TRACKER, BufferedWriter.class, INDEX_BUILDER)),
+                            8, (Object) null),
+                    4, constant(load("SetOperator$Bag"), "UNION"), constant(SORT_KEY, "RECORD")),
+            2, constant(RUN_READER, "DEFAULT_BUFFER_BYTES"))
+            .asType(methodType(Object.class, List.class, List.class, boolean.class, Object.class,
+                    BufferedWriter.class));
+
+    private Engine() {
+    }
+
+    static Object newRecord(String line) throws Throwable {
+        return (Object) NEW_RECORD.invokeExact(line);
+    }
+
+    static void normalize(String line, byte[] dst, int off) throws Throwable {
+        NORMALIZE.invokeExact(line, dst, off);
+    }
+
+    static int compareBytes(byte[] a, byte[] b) throws Throwable {
+        return (int) COMPARE_BYTES.invokeExact(a, b);
+    }
+
+    static long prefixKey(byte[] b, int off) throws Throwable {
+        return (long) PREFIX_KEY.invokeExact(b, off);
+    }
+
+    static int compareKeyed(long aKey, byte[] a, long bKey, byte[] b) throws Throwable {
+        return (int) COMPARE_KEYED.invokeExact(aKey, a, 0, bKey, b, 0);
+    }
+
+    static Object newIOTracker() throws Throwable {
+        return (Object) NEW_IO_TRACKER.invokeExact();
+    }
+
+    static Object newTPMMS(long memMB, Object io, boolean aggregate) throws Throwable {
+        Object sorter = (Object) NEW_TPMMS.invokeExact(memMB, io);
+        SET_AGGREGATE.invokeExact(sorter, aggregate);
+        return sorter;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static void setSortAlgorithm(Object sorter, String algorithm) throws Throwable {
+        SET_SORT_ALGORITHM.invokeExact(sorter, (Object) Enum.valueOf((Class) SORT_ALGORITHM, algorithm));
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<File> createInitialRuns(Object sorter, String input, String prefix) throws Throwable {
+        return (List<File>) CREATE_INITIAL_RUNS.invokeExact(sorter, input, prefix);
+    }
+
+    static File multiPassMerge(Object sorter, List<File> runs, String relName) throws Throwable {
+        return (File) MULTI_PASS_MERGE.invokeExact(sorter, runs, relName);
+    }
+
+    static Object mergeAndWrite(Path t1, Path t2, boolean counted, Object io, BufferedWriter out) throws Throwable {
+        return (Object) MERGE_AND_WRITE.invokeExact(List.of(t1.toFile()), List.of(t2.toFile()), counted, io, out);
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static Object constant(Class<?> c, String name) {
+        try {
+            return c.getField(name).get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> c, MethodType type, MethodType erased) {
+        try {
+            return LOOKUP.findConstructor(c, type).asType(erased);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle staticMethod(Class<?> c, String name, MethodType type) {
+        try {
+            return LOOKUP.findStatic(c, name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle virtual(Class<?> c, String name, MethodType type, MethodType erased) {
+        try {
+            return LOOKUP.findVirtual(c, name, type).asType(erased);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
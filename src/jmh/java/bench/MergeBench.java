@@ -0,0 +1,64 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Phase 2: K-way merge throughput of TPMMS.multiPassMerge over prepared initial runs */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeBench {
+    @Param({"100000", "1000000"})
+    public int records;
+
+    @Param({"0.0", "0.5"})
+    public double dupRatio;
+
+    @Param({"0.0", "0.9"})
+    public double presorted;
+
+    // the run budget sets the number of runs, the merge budget sets the fan in
+    @Param({"2", "16"})
+    public long memMB;
+
+    @Param({"true", "false"})
+    public boolean aggregate;
+
+    private Path runDir;
+    private List<File> runs;
+    private File merged;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        BenchData.silenceEngineLog();
+        Path input = BenchData.input(records, dupRatio, presorted);
+        runDir = BenchData.scratchDir("merge");
+        Object sorter = Engine.newTPMMS(memMB, Engine.newIOTracker(), aggregate);
+        runs = Engine.createInitialRuns(sorter, input.toString(), runDir.resolve("T").toString());
+    }
+
+    @TearDown(Level.Invocation)
+    public void dropOutput() {
+        if (merged != null && !runs.contains(merged)) merged.delete();
+        merged = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void dropRuns() throws Throwable {
+        BenchData.deleteTree(runDir);
+    }
+
+    @Benchmark
+    public File multiPassMerge() throws Throwable {
+        Object sorter = Engine.newTPMMS(memMB, Engine.newIOTracker(), aggregate);
+        merged = Engine.multiPassMerge(sorter, runs, "T");
+        return merged;
+    }
+}
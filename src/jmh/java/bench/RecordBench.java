@@ -0,0 +1,94 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Per record costs: String parsing into Record, byte normalization, and the comparators */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordBench {
+    private static final int LINES = 10_000;
+
+    @Param({"0.0", "0.9"})
+    public double presorted;
+
+    private String[] lines;
+    private Comparable<Object>[] records;
+    private byte[][] slots;
+    private long[] keys;
+    private byte[] scratch;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() throws Throwable {
+        BenchData.silenceEngineLog();
+        List<String> all = Files.readAllLines(BenchData.input(LINES, 0.0, presorted), StandardCharsets.US_ASCII);
+        lines = all.toArray(new String[0]);
+        records = new Comparable[lines.length];
+        slots = new byte[lines.length][];
+        keys = new long[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            records[i] = (Comparable<Object>) Engine.newRecord(lines[i]);
+            slots[i] = records[i].toString().getBytes(StandardCharsets.US_ASCII);
+            keys[i] = Engine.prefixKey(slots[i], 0);
+        }
+        scratch = new byte[slots[0].length];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseRecord(Blackhole bh) throws Throwable {
+        for (String line : lines) {
+            bh.consume(Engine.newRecord(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void normalizeIntoArena(Blackhole bh) throws Throwable {
+        for (String line : lines) {
+            Engine.normalize(line, scratch, 0);
+        }
+        bh.consume(scratch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES - 1)
+    public int compareTo() {
+        int acc = 0;
+        for (int i = 1; i < records.length; i++) {
+            acc += records[i - 1].compareTo(records[i]);
+        }
+        return acc;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES - 1)
+    public int compareBytes() throws Throwable {
+        int acc = 0;
+        for (int i = 1; i < slots.length; i++) {
+            acc += Engine.compareBytes(slots[i - 1], slots[i]);
+        }
+        return acc;
+    }
+
+    // prefix keys already packed, as in the arena sort and the merge heap
+    @Benchmark
+    @OperationsPerInvocation(LINES - 1)
+    public int comparePrefixKeys() throws Throwable {
+        int acc = 0;
+        for (int i = 1; i < slots.length; i++) {
+            acc += Engine.compareKeyed(keys[i - 1], slots[i - 1], keys[i], slots[i]);
+        }
+        return acc;
+    }
+}
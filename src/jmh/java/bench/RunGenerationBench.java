@@ -0,0 +1,61 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Phase 1: parse, sort and write runs (TPMMS.createInitialRuns, which wraps writeRun) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RunGenerationBench {
+    @Param({"100000", "1000000"})
+    public int records;
+
+    @Param({"0.0", "0.5"})
+    public double dupRatio;
+
+    @Param({"0.0", "0.9"})
+    public double presorted;
+
+    @Param({"8", "64"})
+    public long memMB;
+
+    @Param({"true", "false"})
+    public boolean aggregate;
+
+    @Param({"RADIX", "MERGE"})
+    public String sort;
+
+    private Path input;
+    private Path runDir;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        BenchData.silenceEngineLog();
+        input = BenchData.input(records, dupRatio, presorted);
+    }
+
+    @Setup(Level.Invocation)
+    public void freshRunDir() throws Throwable {
+        runDir = BenchData.scratchDir("runs");
+    }
+
+    @TearDown(Level.Invocation)
+    public void dropRuns() throws Throwable {
+        BenchData.deleteTree(runDir);
+    }
+
+    @Benchmark
+    public List<File> createInitialRuns() throws Throwable {
+        Object sorter = Engine.newTPMMS(memMB, Engine.newIOTracker(), aggregate);
+        Engine.setSortAlgorithm(sorter, sort);
+        return Engine.createInitialRuns(sorter, input.toString(), runDir.resolve("T").toString());
+    }
+}
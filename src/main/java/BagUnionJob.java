@@ -0,0 +1,812 @@
+import util.RecordCounter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The sort / bag union engine as a library. A job is built once from two relations, a sort key, a set operator, a
+ * memory budget, threads, a work directory and an output sink, and run() picks the hash or the sort path, writes the
+ * result lines to the sink and returns the metrics, the I/O accounting and where the output went. Main is a thin
+ * command line front end over it.
+ *
+ * Every reader maps or seeks its input, so a file source is read in place while stream and line iterator sources are
+ * spooled once into the work directory. The work directory holds runs, partitions and the job manifest; without one
+ * a job uses a fresh temporary directory and deletes it when done. A caller's work directory is never cleared, the job
+ * works in a tpmms-<id> directory of its own below it.
+ */
+public final class BagUnionJob {
+
+    /** Bag union engine: SORT (TPMMS), HASH, or AUTO to pick by estimated cost; only unions can hash */
+    public enum Strategy { AUTO, HASH, SORT }
+
+    /** Where the key ranges of a partitioned job run: in this JVM or in one worker JVM each */
+    public enum Workers { THREADS, PROCESSES }
+
+    /** A relation: a text file of fixed width records, one per line, or the same lines from a stream or iterator */
+    public static final class Source {
+        private final Path path;
+        private final InputStream in;
+        private final Iterator<String> lines;
+
+        private Source(Path path, InputStream in, Iterator<String> lines) {
+            this.path = path;
+            this.in = in;
+            this.lines = lines;
+        }
+
+        public static Source of(Path path) {
+            return new Source(Objects.requireNonNull(path), null, null);
+        }
+
+        // read to the end and closed by the job
+        public static Source of(InputStream in) {
+            return new Source(null, Objects.requireNonNull(in), null);
+        }
+
+        public static Source of(Iterator<String> lines) {
+            return new Source(null, null, Objects.requireNonNull(lines));
+        }
+
+        public static Source of(Iterable<String> lines) {
+            return of(lines.iterator());
+        }
+
+        public boolean isFile() {
+            return path != null;
+        }
+
+        @Override
+        public String toString() {
+            return (path != null) ? path.toString() : (in != null) ? "<stream>" : "<lines>";
+        }
+
+        // the text file to read: the path itself, or the stream or lines copied to `spool` on first use
+        private String file(File spool) throws IOException {
+            if (path != null) return path.toString();
+            if (spool.isFile()) return spool.getPath();
+            if (in != null) {
+                try (InputStream s = in) {
+                    Files.copy(s, spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } else {
+                try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                        new BlockWriter(spool, RunReader.DEFAULT_BUFFER_BYTES), StandardCharsets.UTF_8))) {
+                    while (lines.hasNext()) {
+                        bw.write(lines.next());
+                        bw.write('\n');
+                    }
+                }
+            }
+            return spool.getPath();
+        }
+    }
+
+    /** Where the result lines go: a file, which can also get a sparse index, or a stream flushed but left open */
+    public static final class Sink {
+        private final Path path;
+        private final OutputStream out;
+
+        private Sink(Path path, OutputStream out) {
+            this.path = path;
+            this.out = out;
+        }
+
+        public static Sink to(Path path) {
+            return new Sink(Objects.requireNonNull(path), null);
+        }
+
+        public static Sink to(OutputStream out) {
+            return new Sink(null, Objects.requireNonNull(out));
+        }
+
+        public boolean isFile() {
+            return path != null;
+        }
+
+        @Override
+        public String toString() {
+            return (path != null) ? path.toString() : "<stream>";
+        }
+
+        // block writer for a file; for a stream, writes go straight through and close only flushes
+        private OutputStream open(int bufferBytes, IOTracker io) throws IOException {
+            if (path != null) return new BlockWriter(path.toFile(), bufferBytes, io);
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.flush();
+                }
+            };
+        }
+    }
+
+    /** What a run did */
+    public static final class Result {
+        public final MergeMetrics metrics;
+        public final IOTracker io;      // closed, the root of every phase, pass and task span
+        public final String strategy;   // hash, sort, partitioned or incremental
+        public final Path output;       // null for a stream sink
+        public final Path index;        // null without a sparse index
+        public final long peakMemoryBytes;
+        public final long millis;
+
+        private Result(MergeMetrics metrics, IOTracker io, String strategy, Path output, Path index,
+                       long peakMemoryBytes, long millis) {
+            this.metrics = metrics;
+            this.io = io;
+            this.strategy = strategy;
+            this.output = output;
+            this.index = index;
+            this.peakMemoryBytes = peakMemoryBytes;
+            this.millis = millis;
+        }
+    }
+
+    /** Job settings; everything but the inputs and the sink has a default */
+    public static final class Builder {
+        private Source t1;
+        private Source t2;
+        private Sink sink;
+        private SortKey key = SortKey.RECORD;
+        private SetOperator.Bag op = SetOperator.Bag.UNION;
+        // defaults are the original single threaded, sort based job; the faster paths are opt-in
+        private long memoryBytes; // 0 = a fifth of the heap
+        private int threads = 1;
+        private int ioDepth = 2;
+        private TPMMS.RunGeneration runGeneration = TPMMS.RunGeneration.LOAD_SORT;
+        private RecordArena.SortAlgorithm sortAlgorithm = RecordArena.SortAlgorithm.MERGE;
+        private boolean aggregate;
+        private RunCodec.Kind compression = RunCodec.Kind.NONE;
+        private boolean fused = true;
+        private Strategy strategy = Strategy.SORT;
+        private boolean preflight = true;
+        private boolean index = true;
+        private File workDir;
+        private List<File> spillDirs;
+        private SpillDirectories.Placement placement = SpillDirectories.Placement.ROUND_ROBIN;
+        private boolean resume;
+        private int partitions = 1;
+        private Workers workers = Workers.THREADS;
+        private Path base;
+        private Source deletes;
+
+        public Builder t1(Source t1) { this.t1 = t1; return this; }
+        public Builder t1(Path t1) { return t1(Source.of(t1)); }
+        public Builder t2(Source t2) { this.t2 = t2; return this; }
+        public Builder t2(Path t2) { return t2(Source.of(t2)); }
+        public Builder output(Sink sink) { this.sink = sink; return this; }
+        public Builder output(Path output) { return output(Sink.to(output)); }
+        public Builder output(OutputStream out) { return output(Sink.to(out)); }
+        // fields to sort and group on, each output line is then one distinct key with its multiplicity
+        public Builder key(SortKey key) { this.key = Objects.requireNonNull(key); return this; }
+        public Builder operator(SetOperator.Bag op) { this.op = Objects.requireNonNull(op); return this; }
+        // bytes for sort buffers, merge buffers and hash tables
+        public Builder memory(long bytes) { this.memoryBytes = bytes; return this; }
+        // Phase 1 sort and Phase 2 merge threads; above 1, T1 and T2 also generate runs concurrently
+        public Builder threads(int threads) { this.threads = Math.max(1, threads); return this; }
+        // buffers per run stream: 1 = synchronous I/O, 2+ = read-ahead / write-behind; process wide
+        public Builder ioDepth(int depth) { this.ioDepth = Math.max(1, depth); return this; }
+        public Builder runGeneration(TPMMS.RunGeneration g) { this.runGeneration = g; return this; }
+        public Builder sortAlgorithm(RecordArena.SortAlgorithm a) { this.sortAlgorithm = a; return this; }
+        // collapse duplicates into (record, count) slots from Phase 1 on
+        public Builder aggregate(boolean aggregate) { this.aggregate = aggregate; return this; }
+        public Builder compression(RunCodec.Kind kind) { this.compression = kind; return this; }
+        // stream the last merge pass of T1 and T2 directly into the operator
+        public Builder fused(boolean fused) { this.fused = fused; return this; }
+        public Builder strategy(Strategy strategy) { this.strategy = strategy; return this; }
+        // scan file inputs first: reject short lines, count records and estimate distinct ones
+        public Builder preflight(boolean preflight) { this.preflight = preflight; return this; }
+        // sparse block index next to a file output, for whole record keys only
+        public Builder index(boolean index) { this.index = index; return this; }
+        // runs, partitions, spooled inputs and the job manifest go to a tpmms-<id> directory below it, which is
+        // cleared unless resuming; other files in dir are left alone
+        public Builder workDir(File dir) { this.workDir = dir; return this; }
+        // directories runs are striped over, one per disk; the work directory by default
+        public Builder spillDirectories(List<File> dirs, SpillDirectories.Placement placement) {
+            this.spillDirs = dirs;
+            this.placement = placement;
+            return this;
+        }
+        // journal Phase 1 and merge passes in the work directory and resume an interrupted sort there
+        public Builder resume(boolean resume) { this.resume = resume; return this; }
+        // sort and unite this many key ranges independently and concatenate them
+        public Builder partitions(int partitions, Workers workers) {
+            this.partitions = Math.max(1, partitions);
+            this.workers = workers;
+            return this;
+        }
+        // incremental mode: fold T1 (inserts, optional) and `deletes` (optional) into a previous union output
+        public Builder incremental(Path base, Source deletes) {
+            this.base = base;
+            this.deletes = deletes;
+            return this;
+        }
+
+        public BagUnionJob build() {
+            if (sink == null) throw new IllegalArgumentException("No output sink");
+            if (base == null && (t1 == null || t2 == null)) {
+                throw new IllegalArgumentException("T1 and T2 are required");
+            }
+            if (base != null) {
+                if (op != SetOperator.Bag.UNION) {
+                    throw new IllegalArgumentException(
+                            "Incremental mode folds changes into a union, the operator must be UNION");
+                }
+                if (!sink.isFile()) throw new IllegalArgumentException("Incremental mode needs a file output");
+            }
+            if (resume && workDir == null) throw new IllegalArgumentException("Resuming needs a work directory");
+            return new BagUnionJob(this);
+        }
+
+        private Builder copy() {
+            Builder b = new Builder();
+            b.t1 = t1; b.t2 = t2; b.sink = sink; b.key = key; b.op = op; b.memoryBytes = memoryBytes;
+            b.threads = threads; b.ioDepth = ioDepth; b.runGeneration = runGeneration; b.sortAlgorithm = sortAlgorithm;
+            b.aggregate = aggregate; b.compression = compression; b.fused = fused; b.strategy = strategy;
+            b.preflight = preflight; b.index = index; b.workDir = workDir; b.spillDirs = spillDirs;
+            b.placement = placement; b.resume = resume; b.partitions = partitions; b.workers = workers;
+            b.base = base; b.deletes = deletes;
+            return b;
+        }
+    }
+
+    private final Builder cfg;
+
+    private BagUnionJob(Builder cfg) {
+        this.cfg = cfg.copy();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Result run() throws IOException {
+        long start = System.currentTimeMillis();
+        MemoryBudget budget = (cfg.memoryBytes > 0)
+                ? new MemoryBudget(cfg.memoryBytes) : MemoryBudget.ofHeapShare(0.2);
+        long maxHeapMB = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+        long budgetMB = budget.totalBytes() / (1024 * 1024);
+        System.out.println("JVM maxHeap MB = " + maxHeapMB + " | memory budget MB = " + budgetMB);
+        if (budget.totalBytes() > Runtime.getRuntime().maxMemory() / 2) {
+            System.out.println("WARNING: memory budget is over half the heap; set  -Xmx" + (budgetMB * 2 + 64) + "m");
+        }
+        System.out.println("Operation: " + cfg.op + " on key " + cfg.key);
+        BlockIO.setDefaultDepth(cfg.ioDepth);
+
+        boolean tempWork = cfg.workDir == null;
+        File work = tempWork ? Files.createTempDirectory("tpmms").toFile() : jobDir(cfg.workDir);
+        IOTracker io = new IOTracker();
+        try {
+            String[] strategy = new String[1];
+            MergeMetrics m = execute(budget, io, work, strategy);
+            io.close();
+            Path index = (indexed() && Files.exists(indexPath())) ? indexPath() : null;
+            return new Result(m, io, strategy[0], cfg.sink.path, index, budget.peakBytes(),
+                    System.currentTimeMillis() - start);
+        } finally {
+            if (tempWork) deleteTree(work);
+        }
+    }
+
+    // the job inside a budget and span of a caller: the whole job from run(), or one key range of a partitioned job
+    private MergeMetrics execute(MemoryBudget budget, IOTracker io, File work, String[] strategy) throws IOException {
+        if (!work.isDirectory() && !work.mkdirs()) throw new IOException("Could not create work directory " + work);
+        Path parent = (cfg.sink.path != null) ? cfg.sink.path.toAbsolutePath().getParent() : null;
+        if (parent != null) Files.createDirectories(parent);
+
+        if (cfg.base != null) {
+            // the base is usually the previous output itself, it is replaced only once the new union is complete
+            clearDir(work);
+            strategy[0] = "incremental";
+            return runIncremental(budget, io, work);
+        }
+        boolean resume = cfg.resume && cfg.t1.isFile() && cfg.t2.isFile() && cfg.partitions == 1;
+        // the job manifest decides what in the work directory survives
+        if (!resume) clearDir(work);
+        String t1Path = cfg.t1.file(new File(work, "T1.input"));
+        String t2Path = cfg.t2.file(new File(work, "T2.input"));
+
+        RecordCounter.Stats t1Stats = cfg.preflight ? preflight("T1", t1Path) : null;
+        RecordCounter.Stats t2Stats = cfg.preflight ? preflight("T2", t2Path) : null;
+
+        // the hash table counts both inputs together, so it only computes unions
+        HashBagUnion hash = new HashBagUnion(budget, io);
+        hash.setSortKey(cfg.key);
+        SpillDirectories hashSpill = spillDirectories(work);
+        hash.setSpillDirectories(hashSpill);
+        if (t1Stats != null) hash.setDistinctEstimate(t1Stats.distinctWith(t2Stats));
+        boolean fits = (t1Stats != null) ? hash.prefersHash(t1Stats.distinctWith(t2Stats))
+                : hash.prefersHash(new File(t1Path), new File(t2Path));
+        boolean useHash = cfg.op == SetOperator.Bag.UNION
+                && (cfg.strategy == Strategy.HASH || (cfg.strategy == Strategy.AUTO && fits));
+        if (useHash) {
+            strategy[0] = "hash";
+            return runHashUnion(hash, hashSpill, t1Path, t2Path, io);
+        }
+        if (cfg.partitions > 1) {
+            strategy[0] = "partitioned";
+            return runPartitioned(budget, t1Path, t2Path, t1Stats, t2Stats, io, work);
+        }
+        strategy[0] = "sort";
+
+        TPMMS sorter = newSorter(budget, io);
+        if (t1Stats != null) {
+            sorter.setRecordEstimate(t1Path, t1Stats.records);
+            sorter.setRecordEstimate(t2Path, t2Stats.records);
+        }
+        SpillDirectories spill = spillDirectories(work);
+        System.out.println("Spill directories (" + cfg.placement + "): " + spill.dirs());
+        sorter.setSpillDirectories(spill);
+        JobManifest manifest = null;
+        if (resume) {
+            manifest = JobManifest.open(work, spill, Map.of("T1", t1Path, "T2", t2Path),
+                    "aggregate=" + cfg.aggregate + " key=" + cfg.key);
+            System.out.println(manifest.resumed() ? "Resuming job from " + manifest.dir() + "/" + JobManifest.FILE_NAME
+                    : "New job, manifest in " + manifest.dir() + "/" + JobManifest.FILE_NAME);
+            sorter.setManifest(manifest);
+        } else {
+            spill.clear();
+        }
+
+        // PHASE 1: create runs for T1 and T2
+        long p1Start = System.currentTimeMillis();
+
+        List<File> t1Runs;
+        List<File> t2Runs;
+        String t1Prefix = new File(work, "T1").getPath();
+        String t2Prefix = new File(work, "T2").getPath();
+        if (cfg.threads > 1) {
+            List<List<File>> both = sorter.createInitialRuns(List.of(t1Path, t2Path), List.of(t1Prefix, t2Prefix));
+            t1Runs = both.get(0);
+            t2Runs = both.get(1);
+        } else {
+            t1Runs = sorter.createInitialRuns(t1Path, t1Prefix);
+            t2Runs = sorter.createInitialRuns(t2Path, t2Prefix);
+        }
+
+        long p1End = System.currentTimeMillis();
+        System.out.println("Phase 1 run generation: " + (p1End - p1Start) + " ms");
+        System.out.println("After Phase 1, total I/Os R=" + io.totalBlocksRead() + " W=" + io.totalBlocksWritten());
+        System.out.println("T1 runs: " + t1Runs.size() + ", T2 runs: " + t2Runs.size());
+        // PHASE 2: merge all runs for T1 and T2, then bag union
+
+        long p2Start = System.currentTimeMillis();
+
+        MergeMetrics resultMetrics;
+        if (cfg.fused) {
+            try (SparseIndex.Builder index = newIndex()) {
+                resultMetrics = fusedUnion(sorter, budget, t1Runs, t2Runs, io, index);
+            }
+        } else {
+            //  TPMMS for T1 and T2
+            File t1Sorted = sorter.multiPassMerge(t1Runs, "T1");
+            File t2Sorted = sorter.multiPassMerge(t2Runs, "T2");
+
+            int bufferBytes = sorter.ioBufferBytes(3);
+            MemoryBudget.Lease lease = budget.reserve(3 * sorter.streamBytes(bufferBytes));
+            try (lease;
+                 IOTracker union = io.span(IOTracker.Kind.PHASE, "union");
+                 BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                    cfg.sink.open(bufferBytes, union), StandardCharsets.US_ASCII));
+                 SparseIndex.Builder index = newIndex()) {
+                union.setFanIn(2);
+                union.setRuns(2, 1);
+                resultMetrics = BagUnionMerger.mergeAndWrite(List.of(t1Sorted), List.of(t2Sorted), bufferBytes,
+                        sorter.isAggregate(), cfg.op, cfg.key, union, bw, index);
+            }
+        }
+
+        long p2End = System.currentTimeMillis();
+
+        System.out.println("Distinct tuples: " + resultMetrics.distinctTuples);
+        System.out.println("Output blocks 40 block: " + resultMetrics.outputBlocks);
+        System.out.println("After Phase 2, total I/Os R=" + io.totalBlocksRead() + " W=" + io.totalBlocksWritten());
+        System.out.println("Phase 2 TPMMS multi pass + bag union: " + (p2End - p2Start) + " ms");
+        if (indexed()) System.out.println("Sparse index: " + indexPath());
+        if (manifest != null) manifest.finish();
+        return resultMetrics;
+    }
+
+    private TPMMS newSorter(MemoryBudget budget, IOTracker io) {
+        TPMMS sorter = new TPMMS(budget, io);
+        sorter.setRunGeneration(cfg.runGeneration);
+        sorter.setThreads(cfg.threads);
+        sorter.setAggregate(cfg.aggregate);
+        sorter.setCompression(cfg.compression);
+        sorter.setSortAlgorithm(cfg.sortAlgorithm);
+        sorter.setSortKey(cfg.key);
+        return sorter;
+    }
+
+    private SpillDirectories spillDirectories(File work) throws IOException {
+        return new SpillDirectories((cfg.spillDirs != null) ? cfg.spillDirs : List.of(work), cfg.placement);
+    }
+
+    // merge each relation only until all remaining T1 + T2 runs fit one K way pass,
+    // then stream that pass straight into the bag union
+    private MergeMetrics fusedUnion(TPMMS sorter, MemoryBudget budget, List<File> t1Runs, List<File> t2Runs,
+                                    IOTracker io, SparseIndex.Builder index) throws IOException {
+        int k = sorter.getFanIn();
+        int total = t1Runs.size() + t2Runs.size();
+        int t1Max = t1Runs.size();
+        int t2Max = t2Runs.size();
+        if (total > k) {
+            t1Max = (int) Math.max(1, (long) k * t1Runs.size() / total);
+            t2Max = Math.max(1, k - t1Max);
+        }
+        List<File> t1Final = t1Runs.isEmpty() ? t1Runs : sorter.mergeDownTo(t1Runs, "T1", t1Max);
+        List<File> t2Final = t2Runs.isEmpty() ? t2Runs : sorter.mergeDownTo(t2Runs, "T2", t2Max);
+        System.out.println("\nFused final merge: " + t1Final.size() + " T1 runs + "
+                + t2Final.size() + " T2 runs");
+
+        int streams = t1Final.size() + t2Final.size() + 1;
+        int bufferBytes = sorter.ioBufferBytes(streams);
+        MemoryBudget.Lease lease = budget.reserve(streams * sorter.streamBytes(bufferBytes));
+        try (lease;
+             IOTracker union = io.span(IOTracker.Kind.PHASE, "union");
+             BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                cfg.sink.open(bufferBytes, union), StandardCharsets.US_ASCII))) {
+            union.setFanIn(t1Final.size() + t2Final.size());
+            union.setRuns(t1Final.size() + t2Final.size(), 1);
+            return BagUnionMerger.mergeAndWrite(t1Final, t2Final, bufferBytes,
+                    sorter.isAggregate(), cfg.op, cfg.key, union, bw, index);
+        }
+    }
+
+    // t1Stats and t2Stats are the pre-flight scans, null when there was none
+    private MergeMetrics runPartitioned(MemoryBudget budget, String t1Path, String t2Path, RecordCounter.Stats t1Stats,
+                                        RecordCounter.Stats t2Stats, IOTracker io, File work) throws IOException {
+        long start = System.currentTimeMillis();
+        int partitions = cfg.partitions;
+        // the pre-flight key samples spare a sampling read of both inputs; they are whole record prefixes
+        RangePartitioner partitioner = (t1Stats != null && cfg.key.isRecord())
+                ? RangePartitioner.fromSamples(List.of(t1Stats.keySamples, t2Stats.keySamples), partitions)
+                : RangePartitioner.sample(List.of(t1Path, t2Path), cfg.key, partitions);
+        File[] dirs = new File[partitions];
+        for (int r = 0; r < partitions; r++) {
+            dirs[r] = new File(work, "part_" + r);
+            if (!dirs[r].isDirectory() && !dirs[r].mkdirs()) throw new IOException("Could not create " + dirs[r]);
+        }
+        long[] t1Counts, t2Counts;
+        try (IOTracker span = io.span(IOTracker.Kind.PHASE, "scatter")) {
+            t1Counts = partitioner.scatter(t1Path, dirs, "T1.txt", span);
+            t2Counts = partitioner.scatter(t2Path, dirs, "T2.txt", span);
+        }
+        long scattered = System.currentTimeMillis();
+        System.out.println("Scattered into " + partitions + " key ranges in " + (scattered - start) + " ms");
+        for (int r = 0; r < partitions; r++) {
+            System.out.println("  range " + r + ": T1 " + t1Counts[r] + ", T2 " + t2Counts[r] + " records");
+        }
+
+        long[] rangeDistinct = (cfg.workers == Workers.PROCESSES) ? runWorkerProcesses(dirs, budget, io)
+                : runWorkerThreads(dirs, budget, io);
+        long distinct = Arrays.stream(rangeDistinct).sum();
+        long united = System.currentTimeMillis();
+        System.out.println(partitions + " ranges sorted and united by " + cfg.workers.name().toLowerCase() + " in "
+                + (united - scattered) + " ms");
+
+        // the ranges are in key order, so their outputs back to back are the sorted output; copied in blocks, and
+        // only scanned for line ends when the index needs each line
+        try (IOTracker span = io.span(IOTracker.Kind.PHASE, "concatenate");
+             OutputStream out = cfg.sink.open(RunReader.DEFAULT_BUFFER_BYTES, span);
+             SparseIndex.Builder index = newIndex()) {
+            byte[] buf = (index == null) ? null : new byte[RunReader.DEFAULT_BUFFER_BYTES];
+            byte[] line = (index == null) ? null : new byte[Record.TOTAL_WIDTH + 64];
+            for (int r = 0; r < dirs.length; r++) {
+                File part = new File(dirs[r], "out.txt");
+                try (InputStream in = new FileInputStream(part)) {
+                    long bytes = (index == null) ? in.transferTo(out) : copyIndexed(in, out, buf, line, index, part);
+                    span.noteReadLines(rangeDistinct[r], bytes);
+                    span.noteWriteLines(rangeDistinct[r]);
+                }
+            }
+            span.flushPartialBlocks();
+        }
+        MergeMetrics m = new MergeMetrics();
+        m.distinctTuples = distinct;
+        m.outputBlocks = MergeMetrics.blocksForTuples(distinct);
+        System.out.println("Distinct tuples: " + m.distinctTuples);
+        System.out.println("Output blocks 40 block: " + m.outputBlocks);
+        System.out.println("Total I/Os R=" + io.totalBlocksRead() + " W=" + io.totalBlocksWritten());
+        System.out.println("Partitioned bag union: " + (System.currentTimeMillis() - start) + " ms");
+        if (indexed()) System.out.println("Sparse index: " + indexPath());
+        return m;
+    }
+
+    // copies a range output through buf and adds each of its lines to the index; a line cut by the end of buf is
+    // put together in line. Returns the bytes copied
+    private static long copyIndexed(InputStream in, OutputStream out, byte[] buf, byte[] line,
+                                    SparseIndex.Builder index, File part) throws IOException {
+        long bytes = 0;
+        int pending = 0; // bytes of an unfinished line in line
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+            bytes += n;
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                if (buf[i] != '\n') continue;
+                if (pending == 0) {
+                    index.add(buf, start, i + 1 - start);
+                } else {
+                    pending = append(line, pending, buf, start, i + 1, part);
+                    index.add(line, 0, pending);
+                    pending = 0;
+                }
+                start = i + 1;
+            }
+            if (start < n) pending = append(line, pending, buf, start, n, part);
+        }
+        if (pending > 0) throw new IOException("Range output does not end with a line break: " + part);
+        return bytes;
+    }
+
+    private static int append(byte[] line, int len, byte[] src, int from, int to, File part) throws IOException {
+        if (len + to - from > line.length) {
+            throw new IOException("Range output line longer than " + line.length + " bytes: " + part);
+        }
+        System.arraycopy(src, from, line, len, to - from);
+        return len + to - from;
+    }
+
+    // this job's settings for one key range directory written by runPartitioned: dir/T1.txt and dir/T2.txt into
+    // dir/out.txt, single threaded, by hash when the range fits the table
+    private BagUnionJob rangeJob(File dir, long memoryBytes) {
+        Builder b = cfg.copy();
+        b.t1 = Source.of(new File(dir, "T1.txt").toPath());
+        b.t2 = Source.of(new File(dir, "T2.txt").toPath());
+        b.sink = Sink.to(new File(dir, "out.txt").toPath());
+        b.workDir = new File(dir, "runs");
+        b.spillDirs = null;
+        b.memoryBytes = memoryBytes;
+        b.threads = 1;
+        b.preflight = false;
+        b.index = false;
+        b.resume = false;
+        b.partitions = 1;
+        return new BagUnionJob(b);
+    }
+
+    // each range in this JVM on its own TPMMS, IOTracker span and share of the budget, which leases from the job's
+    // budget so its peak covers the ranges; returns the distinct tuples of each range
+    private long[] runWorkerThreads(File[] dirs, MemoryBudget budget, IOTracker io) throws IOException {
+        int workers = Math.min(dirs.length, cfg.threads);
+        long share = budget.available() / workers;
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<MergeMetrics>> results = new ArrayList<>();
+            for (int r = 0; r < dirs.length; r++) {
+                BagUnionJob range = rangeJob(dirs[r], share);
+                String name = "range " + r;
+                results.add(pool.submit(() -> {
+                    try (IOTracker span = io.span(IOTracker.Kind.PHASE, name)) {
+                        return range.execute(budget.share(share), span, range.cfg.workDir, new String[1]);
+                    }
+                }));
+            }
+            long[] distinct = new long[dirs.length];
+            for (int r = 0; r < dirs.length; r++) distinct[r] = results.get(r).get().distinctTuples;
+            return distinct;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for range workers");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // each range in a worker JVM running Main with this job's settings and its share of the budget; a worker logs to
+    // <range>/worker.log and leaves "distinct blocksRead blocksWritten peakLeasedBytes" in <range>/result. The workers
+    // run at once, so their peaks add up in the job's budget. Returns the distinct tuples of each range
+    private long[] runWorkerProcesses(File[] dirs, MemoryBudget budget, IOTracker io) throws IOException {
+        long share = budget.totalBytes() / dirs.length;
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        List<Process> workers = new ArrayList<>();
+        for (File dir : dirs) {
+            List<String> cmd = new ArrayList<>(List.of(java, "-Xmx" + (share * 2 / (1024 * 1024) + 64) + "m",
+                    "-cp", System.getProperty("java.class.path"), "Main",
+                    "--key=" + cfg.key, "--op=" + cfg.op, "--union=" + cfg.strategy,
+                    "--runs=" + cfg.runGeneration, "--sort=" + cfg.sortAlgorithm, "--aggregate=" + cfg.aggregate,
+                    "--compress=" + cfg.compression, "--fused=" + cfg.fused, "--ioDepth=" + cfg.ioDepth,
+                    "--spillPlacement=" + cfg.placement, "--memory=" + share, "--threads=1",
+                    "--metrics=" + new File(dir, "metrics.json").getPath(), "--worker=" + dir.getPath()));
+            workers.add(new ProcessBuilder(cmd).redirectErrorStream(true)
+                    .redirectOutput(new File(dir, "worker.log")).start());
+        }
+        long[] distinct = new long[dirs.length];
+        long peak = 0;
+        for (int r = 0; r < dirs.length; r++) {
+            try {
+                if (workers.get(r).waitFor() != 0) {
+                    throw new IOException("Range worker " + r + " failed, see " + new File(dirs[r], "worker.log"));
+                }
+            } catch (InterruptedException e) {
+                for (Process p : workers) p.destroy();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for range workers");
+            }
+            String[] result = new String(Files.readAllBytes(new File(dirs[r], "result").toPath()),
+                    StandardCharsets.US_ASCII).trim().split(" ");
+            distinct[r] = Long.parseLong(result[0]);
+            try (IOTracker span = io.span(IOTracker.Kind.PHASE, "range " + r)) {
+                span.noteBlocks(Long.parseLong(result[1]), Long.parseLong(result[2]));
+            }
+            peak += Long.parseLong(result[3]);
+        }
+        budget.notePeak(peak);
+        return distinct;
+    }
+
+    // worker JVM side of runWorkerProcesses: unites one range directory with these settings and leaves its result
+    Result runRange(File dir) throws IOException {
+        Result r = rangeJob(dir, cfg.memoryBytes).run();
+        Files.write(new File(dir, "result").toPath(), (r.metrics.distinctTuples + " " + r.io.totalBlocksRead() + " "
+                + r.io.totalBlocksWritten() + " " + r.peakMemoryBytes).getBytes(StandardCharsets.US_ASCII));
+        return r;
+    }
+
+    private RecordCounter.Stats preflight(String rel, String path) throws IOException {
+        long start = System.currentTimeMillis();
+        RecordCounter.Stats s = RecordCounter.scan(new File(path).toPath(), Record.TOTAL_WIDTH, cfg.threads);
+        System.out.println("Preflight " + rel + ": " + s.records + " records, " + s.blocks() + " blocks, ~"
+                + s.distinctEstimate() + " distinct, " + (System.currentTimeMillis() - start) + " ms");
+        if (s.shortLines > 0) {
+            throw new IllegalArgumentException(rel + " input " + path + " has " + s.shortLines + " lines shorter than "
+                    + Record.TOTAL_WIDTH + " chars, the first at line " + s.firstShortLine);
+        }
+        if (s.longLines > 0) {
+            System.out.println("WARNING: " + s.longLines + " " + rel + " lines are longer than " + Record.TOTAL_WIDTH
+                    + " chars, only the first " + Record.TOTAL_WIDTH + " are used");
+        }
+        return s;
+    }
+
+    private MergeMetrics runIncremental(MemoryBudget budget, IOTracker io, File work) throws IOException {
+        File base = cfg.base.toFile();
+        if (!base.isFile()) throw new FileNotFoundException("Base union not found: " + base);
+        System.out.println("Incremental bag union: base " + base + ", inserts " + (cfg.t1 == null ? "-" : cfg.t1)
+                + ", deletes " + (cfg.deletes == null ? "-" : cfg.deletes));
+        long start = System.currentTimeMillis();
+
+        TPMMS sorter = newSorter(budget, io);
+        sorter.setAggregate(true); // changes must be counted runs to add to and subtract from the base
+        SpillDirectories spill = spillDirectories(work);
+        spill.clear();
+        sorter.setSpillDirectories(spill);
+
+        List<File> inserts = (cfg.t1 == null) ? new ArrayList<>()
+                : sorter.createInitialRuns(cfg.t1.file(new File(work, "delta.input")),
+                        new File(work, "delta").getPath());
+        List<File> deletes = (cfg.deletes == null) ? new ArrayList<>()
+                : sorter.createInitialRuns(cfg.deletes.file(new File(work, "deletes.input")),
+                        new File(work, "deletes").getPath());
+
+        // like the fused final merge: reduce the changes until base + inserts + deletes fit one pass,
+        // which also writes the text output and the binary base
+        int k = Math.max(2, sorter.getFanIn() - 2);
+        int total = inserts.size() + deletes.size();
+        int insMax = inserts.size();
+        int delMax = deletes.size();
+        if (total > k) {
+            insMax = (int) Math.max(1, (long) k * inserts.size() / total);
+            delMax = Math.max(1, k - insMax);
+        }
+        if (inserts.size() > insMax) inserts = sorter.mergeDownTo(inserts, "delta", insMax);
+        if (deletes.size() > delMax) deletes = sorter.mergeDownTo(deletes, "deletes", delMax);
+
+        File output = cfg.sink.path.toFile();
+        File textTmp = new File(output.getPath() + ".tmp");
+        File baseTmp = new File(IncrementalBagUnion.baseRunFor(output).getPath() + ".tmp");
+        File indexTmp = new File(indexPath() + ".tmp");
+        int streams = inserts.size() + deletes.size() + 3;
+        int bufferBytes = sorter.ioBufferBytes(streams);
+        MergeMetrics resultMetrics;
+        MemoryBudget.Lease lease = budget.reserve(streams * sorter.streamBytes(bufferBytes));
+        try (lease;
+             IOTracker union = io.span(IOTracker.Kind.PHASE, "incremental union");
+             BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                     new BlockWriter(textTmp, bufferBytes, union), StandardCharsets.US_ASCII));
+             RunWriter baseOut = new RunWriter(baseTmp, union, bufferBytes, true, cfg.compression);
+             SparseIndex.Builder index = indexed() ? new SparseIndex.Builder(indexTmp) : null) {
+            union.setFanIn(inserts.size() + deletes.size() + 1);
+            union.setRuns(inserts.size() + deletes.size() + 1, 1);
+            resultMetrics = IncrementalBagUnion.apply(base, inserts, deletes, bufferBytes, cfg.key, union, bw,
+                    baseOut, index);
+        }
+        Files.move(textTmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        Files.move(baseTmp.toPath(), IncrementalBagUnion.baseRunFor(output).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (indexed()) {
+            Files.move(indexTmp.toPath(), indexPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.deleteIfExists(indexPath()); // would no longer match the output
+        }
+
+        long end = System.currentTimeMillis();
+        System.out.println("Distinct tuples: " + resultMetrics.distinctTuples);
+        System.out.println("Output blocks 40 block: " + resultMetrics.outputBlocks);
+        if (resultMetrics.overDeletedTuples > 0) {
+            System.out.println("WARNING: " + resultMetrics.overDeletedTuples + " records had more deletes than copies");
+        }
+        System.out.println("Binary base for the next batch: " + IncrementalBagUnion.baseRunFor(output));
+        System.out.println("Total I/Os R=" + io.totalBlocksRead() + " W=" + io.totalBlocksWritten());
+        System.out.println("Incremental bag union: " + (end - start) + " ms");
+        return resultMetrics;
+    }
+
+    // a hash union cannot resume, so its partitions and runs are removed once the output is written
+    private MergeMetrics runHashUnion(HashBagUnion hash, SpillDirectories spill, String t1Path, String t2Path,
+                                      IOTracker io) throws IOException {
+        System.out.println("Hash bag union, table capacity " + hash.capacity() + " distinct records");
+        long start = System.currentTimeMillis();
+
+        MergeMetrics resultMetrics;
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                cfg.sink.open(RunReader.DEFAULT_BUFFER_BYTES, io), StandardCharsets.US_ASCII));
+             SparseIndex.Builder index = newIndex()) {
+            resultMetrics = hash.unionAndWrite(t1Path, t2Path, bw, index);
+        } finally {
+            spill.clear();
+        }
+
+        long end = System.currentTimeMillis();
+        System.out.println("Distinct tuples: " + resultMetrics.distinctTuples);
+        System.out.println("Output blocks 40 block: " + resultMetrics.outputBlocks);
+        System.out.println("Total I/Os R=" + io.totalBlocksRead() + " W=" + io.totalBlocksWritten());
+        System.out.println("Hash bag union: " + (end - start) + " ms");
+        return resultMetrics;
+    }
+
+    // an index needs a file to point into and whole records to look up
+    private boolean indexed() {
+        return cfg.index && cfg.sink.isFile() && cfg.key.isRecord();
+    }
+
+    private Path indexPath() {
+        return (cfg.sink.path == null) ? null : SparseIndex.indexFor(cfg.sink.path.toFile()).toPath();
+    }
+
+    // null when the index is turned off, try-with-resources skips it
+    private SparseIndex.Builder newIndex() throws IOException {
+        return indexed() ? new SparseIndex.Builder(indexPath().toFile()) : null;
+    }
+
+    // the job's own directory below a caller's work directory, named after the output so that resuming finds the
+    // runs of the interrupted job and jobs writing other outputs can share the work directory
+    private File jobDir(File workDir) {
+        String output = (cfg.sink.path != null) ? cfg.sink.path.toAbsolutePath().normalize().toString() : "<stream>";
+        return new File(workDir, String.format("tpmms-%08x", output.hashCode()));
+    }
+
+    // deletes everything below dir, keeping dir itself
+    private static void clearDir(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) deleteTree(f);
+    }
+
+    private static void deleteTree(File f) throws IOException {
+        if (f.isDirectory()) clearDir(f);
+        if (!f.delete() && f.exists()) throw new IOException("Could not delete " + f.getAbsolutePath());
+    }
+}
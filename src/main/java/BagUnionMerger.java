@@ -1,62 +1,50 @@
 import java.io.*;
-import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.List;
 
 public class BagUnionMerger {
 
-    public static MergeMetrics mergeAndWrite(Path sortedT1,
-                                             Path sortedT2,
+    // Fused final merge: T1 runs and T2 runs are merged in one multiway pass straight into the output.
+    // All copies of a key are summed within each input, and each key's T1 and T2 counts go through op.
+    // counted = the runs are aggregated (record, multiplicity) runs; index, when not null, is built over the output
+    public static MergeMetrics mergeAndWrite(List<File> t1Runs,
+                                             List<File> t2Runs,
+                                             int bufferBytesPerRun,
+                                             boolean counted,
+                                             SetOperator op,
+                                             SortKey key,
                                              IOTracker io,
-                                             BufferedWriter out) throws IOException {
+                                             BufferedWriter out,
+                                             SparseIndex.Builder index) throws IOException {
         MergeMetrics metrics = new MergeMetrics();
+        int width = key.width();
+        char[] line = new char[Record.TOTAL_WIDTH];
+        byte[] k1 = new byte[Record.TOTAL_WIDTH];
+        byte[] k2 = new byte[Record.TOTAL_WIDTH];
 
-        try (BufferedReader br1 = new BufferedReader(new FileReader(sortedT1.toFile()));
-             BufferedReader br2 = new BufferedReader(new FileReader(sortedT2.toFile()))) {
+        try (KWayMerger m1 = new KWayMerger(t1Runs, io, bufferBytesPerRun, counted);
+             KWayMerger m2 = new KWayMerger(t2Runs, io, bufferBytesPerRun, counted)) {
 
-            String l1 = br1.readLine();
-            if (l1 != null) io.noteReadLine();
-            String l2 = br2.readLine();
-            if (l2 != null) io.noteReadLine();
+            int c1 = m1.nextGroup(k1);
+            int c2 = m2.nextGroup(k2);
 
-            while (l1 != null || l2 != null) {
-                Record r1 = (l1 != null) ? new Record(l1) : null;
-                Record r2 = (l2 != null) ? new Record(l2) : null;
+            // once one side is drained the rest of the other only matters if op keeps unmatched keys
+            while ((c1 > 0 && (c2 > 0 || op.keepsT1Only())) || (c2 > 0 && (c1 > 0 || op.keepsT2Only()))) {
+                int cmp = (c1 > 0 && c2 > 0)
+                        ? Record.compareBytes(Record.prefixKey(k1, 0), k1, 0, Record.prefixKey(k2, 0), k2, 0) : 0;
 
-                Record key;
-                int count = 0;
-
-                if (r2 == null || (r1 != null && r1.compareTo(r2) < 0)) {
-                    // consume r1 only group...
-                    key = r1;
-                    count = 1;
-                    l1 = br1.readLine();
-                    if (l1 != null) io.noteReadLine();
-                } else if (r1 == null || r2.compareTo(r1) < 0) {
-                    key = r2;
-                    count = 1;
-                    l2 = br2.readLine();
-                    if (l2 != null) io.noteReadLine();
+                if (c2 == 0 || (c1 > 0 && cmp < 0)) {
+                    // key only in T1
+                    write(k1, op.combine(c1, 0), width, line, io, out, index, metrics);
+                    c1 = m1.nextGroup(k1);
+                } else if (c1 == 0 || cmp > 0) {
+                    write(k2, op.combine(0, c2), width, line, io, out, index, metrics);
+                    c2 = m2.nextGroup(k2);
                 } else {
-                    // r1 == r2 consume from both and sum multiplicities
-                    key = r1;
-                    int c1 = 1;
-                    int c2 = 1;
-                    l1 = br1.readLine();
-                    if (l1 != null) io.noteReadLine();
-                    l2 = br2.readLine();
-                    if (l2 != null) io.noteReadLine();
-                    count = c1 + c2;
+                    // same key in both
+                    write(k1, op.combine(c1, c2), width, line, io, out, index, metrics);
+                    c1 = m1.nextGroup(k1);
+                    c2 = m2.nextGroup(k2);
                 }
-
-                // stream result out immediately
-                out.write(key.raw);
-                out.write(':');
-                out.write(Integer.toString(count));
-                out.newLine();
-                io.noteWriteLine();
-
-                metrics.distinctTuples++;
             }
         }
 
@@ -64,5 +52,32 @@ public class BagUnionMerger {
         io.flushPartialBlocks();
         return metrics;
     }
-}
 
+    private static void write(byte[] key, int count, int width, char[] line, IOTracker io, Writer out,
+                              SparseIndex.Builder index, MergeMetrics metrics) throws IOException {
+        if (count <= 0) return;
+        emit(key, 0, width, count, line, io, out, index);
+        metrics.distinctTuples++;
+    }
+
+    // stream result out immediately, one key:count line for the slot at src[off]; a projected key writes only its
+    // width bytes, not the blanked rest of the slot
+    static void emit(byte[] src, int off, int width, int count, char[] line, IOTracker io, Writer out,
+                     SparseIndex.Builder index) throws IOException {
+        String c = Integer.toString(count);
+        String sep = System.lineSeparator();
+        writeAscii(src, off, width, line, out);
+        out.write(':');
+        out.write(c);
+        out.write(sep);
+        io.noteWriteLine();
+        if (index != null) index.add(src, off, width + 1 + c.length() + sep.length());
+    }
+
+    private static void writeAscii(byte[] src, int off, int width, char[] line, Writer out) throws IOException {
+        for (int i = 0; i < width; i++) {
+            line[i] = (char) (src[off + i] & 0xFF);
+        }
+        out.write(line, 0, width);
+    }
+}
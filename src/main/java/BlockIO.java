@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+
+/** Background I/O threads for read-ahead and write-behind buffers, plus the default buffer depth per stream */
+public final class BlockIO {
+    private static final int IO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(IO_THREADS, r -> {
+        Thread t = new Thread(r, "tpmms-io");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // buffers per stream: 1 = synchronous, 2 = double buffering, more = deeper read-ahead / write-behind
+    private static volatile int defaultDepth = 2;
+
+    private BlockIO() {
+    }
+
+    public static int defaultDepth() {
+        return defaultDepth;
+    }
+
+    public static void setDefaultDepth(int depth) {
+        defaultDepth = Math.max(1, depth);
+    }
+
+    static Future<ByteBuffer> submit(Callable<ByteBuffer> task) {
+        return EXECUTOR.submit(task);
+    }
+
+    // fills b from pos until it is full or the file ends, then flips it for reading
+    static ByteBuffer readFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) break;
+        }
+        b.flip();
+        return b;
+    }
+
+    static ByteBuffer writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            pos += ch.write(b, pos);
+        }
+        b.clear();
+        return b;
+    }
+
+    static ByteBuffer await(Future<ByteBuffer> f) throws IOException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for block I/O");
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Future;
+
+/** Write-behind output stream: full buffers are written by a background thread while the caller fills the next one */
+public class BlockWriter extends OutputStream {
+    private final FileChannel ch;
+    private final int depth;
+    private final int bufferBytes;
+    private final IOTracker io;
+    private final ArrayDeque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private int allocated;
+    private ByteBuffer cur;
+    private long pos;
+
+    public BlockWriter(File file, int bufferBytes) throws IOException {
+        this(file, bufferBytes, null);
+    }
+
+    // io (may be null) is charged with the bytes written and the time spent waiting for free buffers
+    public BlockWriter(File file, int bufferBytes, IOTracker io) throws IOException {
+        this(file, bufferBytes, BlockIO.defaultDepth(), 0, true, io);
+    }
+
+    // writes from startPos on; truncate = false lets several writers fill disjoint slices of one file
+    public BlockWriter(File file, int bufferBytes, int depth, long startPos, boolean truncate,
+                       IOTracker io) throws IOException {
+        this.ch = truncate
+                ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.depth = Math.max(1, depth);
+        this.bufferBytes = Math.max(1, bufferBytes);
+        this.pos = startPos;
+        this.io = io;
+        this.cur = allocate();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!cur.hasRemaining()) submitCurrent();
+        cur.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!cur.hasRemaining()) submitCurrent();
+            int n = Math.min(len, cur.remaining());
+            cur.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    // waits until everything written so far is on the channel
+    @Override
+    public void flush() throws IOException {
+        if (cur.position() > 0) submitCurrent();
+        while (!pending.isEmpty()) {
+            free.add(awaitOldest());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            ch.close();
+        }
+    }
+
+    private void submitCurrent() throws IOException {
+        ByteBuffer b = cur;
+        b.flip();
+        long at = pos;
+        pos += b.remaining();
+        if (io != null) io.noteBytesWritten(b.remaining());
+        if (depth == 1) {
+            long start = System.nanoTime();
+            cur = BlockIO.writeFully(ch, b, at);
+            if (io != null) io.noteIoWait(System.nanoTime() - start);
+            return;
+        }
+        pending.add(BlockIO.submit(() -> BlockIO.writeFully(ch, b, at)));
+        if (!free.isEmpty()) {
+            cur = free.poll();
+        } else if (allocated < depth) {
+            cur = allocate();
+        } else {
+            // all buffers in flight, wait for the oldest write
+            cur = awaitOldest();
+        }
+    }
+
+    private ByteBuffer awaitOldest() throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer b = BlockIO.await(pending.poll());
+        if (io != null) io.noteIoWait(System.nanoTime() - start);
+        return b;
+    }
+
+    private ByteBuffer allocate() {
+        allocated++;
+        return ByteBuffer.allocateDirect(bufferBytes);
+    }
+}
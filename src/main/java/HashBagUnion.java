@@ -0,0 +1,327 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hash aggregation alternative to sorting both relations: builds a record -> count map from the smaller input and
+ * streams the larger one through it. If the distinct keys outgrow the budget, the map and the rest of the input are
+ * spilled to hash partitions on disk (Grace hash), each partition is aggregated on its own and written as a sorted
+ * counted run, and those runs are merged into the same sorted record:count output the sort path produces. A
+ * partition that still does not fit after MAX_DEPTH levels is sorted in table sized chunks instead.
+ */
+public class HashBagUnion {
+    private static final int W = Record.TOTAL_WIDTH;
+    private static final int MAX_PARTITIONS = 256;
+    static final int MAX_DEPTH = 4;
+    private static final int PARTITION_BUFFER = 40 * RunReader.slotWidth(true); // one block per partition
+
+    private final IOTracker io;
+    private final MemoryBudget budget;
+    private final int capacity;
+    private SortKey key = SortKey.RECORD;
+    private SpillDirectories spill; // null: partitions and runs in the JVM temp dir
+    private long distinctEstimate = -1;
+
+    // sized from the whole budget less one partition stream to read back; the table and partition buffers are
+    // leased from it while a union runs, and a spill writes its partitions with the table's memory
+    public HashBagUnion(MemoryBudget budget, IOTracker io) {
+        this.io = io;
+        this.budget = budget;
+        long mapBytes = budget.totalBytes() - streamBytes();
+        this.capacity = (int) Math.max(1, Math.min(RecordArena.maxCapacity(), mapBytes / RecordCountMap.bytesPerKey()));
+    }
+
+    // fields records are counted on, each record is projected onto them as it is read
+    public void setSortKey(SortKey key) {
+        this.key = key;
+    }
+
+    // where partitions and sorted runs go, the same directories TPMMS spills runs to
+    public void setSpillDirectories(SpillDirectories spill) {
+        this.spill = spill;
+    }
+
+    // distinct records across both inputs, e.g. from a pre-flight scan; sizes the first spill's fan-out
+    public void setDistinctEstimate(long distinct) {
+        this.distinctEstimate = distinct;
+    }
+
+    // distinct records the in-memory map can hold
+    public int capacity() {
+        return capacity;
+    }
+
+    // one read of each input when the records fit, against ~3 passes for fused TPMMS; a spilling hash union
+    // pays about as much as sorting, so only prefer it when the inputs fit outright
+    public boolean prefersHash(File t1, File t2) {
+        long records = (t1.length() + t2.length()) / (W + 1);
+        return records <= capacity;
+    }
+
+    // the same with a distinct record estimate, e.g. from a pre-flight scan: duplicates share one slot, so inputs
+    // larger than the table still fit; a 5% margin covers the estimate's error
+    public boolean prefersHash(long distinctRecords) {
+        return distinctRecords + distinctRecords / 20 <= capacity;
+    }
+
+    public MergeMetrics unionAndWrite(String t1Path, String t2Path, BufferedWriter out) throws IOException {
+        return unionAndWrite(t1Path, t2Path, out, null);
+    }
+
+    // same, also building the sparse block index of the output when index is not null
+    public MergeMetrics unionAndWrite(String t1Path, String t2Path, BufferedWriter out,
+                                      SparseIndex.Builder index) throws IOException {
+        // smaller relation first, it builds the table
+        String build = t1Path, probe = t2Path;
+        if (new File(t2Path).length() < new File(t1Path).length()) {
+            build = t2Path;
+            probe = t1Path;
+        }
+
+        // one table at a time (a partition's map replaces the build map) and the partition being read back; the
+        // table is sized to what the lease got when part of the budget is held elsewhere
+        long footprint = (long) capacity * RecordCountMap.bytesPerKey() + streamBytes();
+        List<File> sortedParts = new ArrayList<>();
+        MemoryBudget.Lease lease = budget.reserve(Math.min(footprint, budget.available()));
+        try (lease) {
+            long tableBytes = lease.bytes() - streamBytes();
+            int tableCapacity = (int) Math.min(capacity, tableBytes / RecordCountMap.bytesPerKey());
+            if (tableCapacity < 1) {
+                throw new IllegalStateException("Memory budget leaves " + lease.bytes()
+                        + " bytes, too little for a hash table");
+            }
+            List<File> spillFiles = new ArrayList<>();
+            RecordCountMap map = buildTable(build, probe, tableCapacity, tableBytes, spillFiles);
+            if (map != null) {
+                // everything fit: one read per block, emit straight from the table
+                try (IOTracker span = io.span(IOTracker.Kind.PHASE, "hash emit")) {
+                    return writeSorted(map, out, span, index);
+                }
+            }
+            try (IOTracker span = io.span(IOTracker.Kind.PHASE, "hash partitions")) {
+                for (File part : spillFiles) {
+                    aggregatePartition(part, 1, tableCapacity, tableBytes, sortedParts, span);
+                }
+                span.setRuns(spillFiles.size(), sortedParts.size());
+            }
+        }
+
+        try {
+            return mergeParts(sortedParts, out, index);
+        } finally {
+            for (File f : sortedParts) f.delete();
+        }
+    }
+
+    // reads both inputs into a table of tableCapacity keys and returns it, or null once it spilled: the table and
+    // the rest of the input then went to partitions added to spillFiles
+    private RecordCountMap buildTable(String build, String probe, int tableCapacity, long tableBytes,
+                                      List<File> spillFiles) throws IOException {
+        RecordCountMap map = new RecordCountMap(tableCapacity);
+        byte[] rec = new byte[W];
+        byte[] scratch = new byte[W];
+        RunWriter[] parts = null;
+        IOTracker[] partSpans = null;
+
+        try (IOTracker span = io.span(IOTracker.Kind.PHASE, "hash build")) {
+            try {
+                for (String path : new String[]{build, probe}) {
+                    try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+                        String line;
+                        while ((line = br.readLine()) != null) {
+                            span.noteReadLine(line.length());
+                            Record.normalize(line, rec, 0);
+                            key.project(rec, 0, scratch);
+                            if (parts == null && map.add(rec, 0, 1)) continue;
+                            if (parts == null) {
+                                long bound = (distinctEstimate >= 0) ? distinctEstimate
+                                        : (new File(build).length() + new File(probe).length()) / (W + 1);
+                                int ways = fanOut(bound, tableCapacity, tableBytes);
+                                System.out.println("Hash union: " + map.size()
+                                        + " distinct records exceed memory, spilling to " + ways + " partitions");
+                                partSpans = new IOTracker[ways];
+                                parts = openPartitions(ways, 1, spillFiles, partSpans, span);
+                                spillMap(map, parts, 1);
+                                map = null; // the partition buffers take its memory
+                            }
+                            parts[partition(rec, 0, 1, parts.length)].write(rec, 0, 1);
+                        }
+                    }
+                }
+            } finally {
+                closeAll(parts, partSpans);
+            }
+            span.flushPartialBlocks();
+            span.setRuns(0, spillFiles.size());
+        }
+        return map;
+    }
+
+    // merges the sorted partition runs into the output, first merging them down with TPMMS when the free budget
+    // cannot hold a buffer for each of them
+    private MergeMetrics mergeParts(List<File> sortedParts, BufferedWriter out, SparseIndex.Builder index)
+            throws IOException {
+        int fit = (int) Math.max(2, budget.available() / streamBytes());
+        List<File> parts = sortedParts;
+        if (parts.size() > fit) {
+            TPMMS sorter = new TPMMS(budget, io);
+            sorter.setAggregate(true);
+            sorter.setThreads(1);
+            sorter.setSpillDirectories(spill);
+            parts = sorter.mergeDownTo(sortedParts, "hash", fit);
+        }
+        MemoryBudget.Lease lease = budget.reserve(parts.size() * streamBytes());
+        try (lease; IOTracker span = io.span(IOTracker.Kind.PHASE, "hash merge")) {
+            span.setFanIn(parts.size());
+            span.setRuns(parts.size(), 1);
+            return BagUnionMerger.mergeAndWrite(parts, List.of(), PARTITION_BUFFER, true, SetOperator.Bag.UNION,
+                    key, span, out, index);
+        } finally {
+            for (File f : parts) f.delete();
+        }
+    }
+
+    // aggregates one spilled partition into sorted counted runs, repartitioning if it still does not fit; past
+    // MAX_DEPTH levels each full table is written as a sorted run of its own and the final merge sums them
+    private void aggregatePartition(File part, int depth, int tableCapacity, long tableBytes, List<File> sortedParts,
+                                    IOTracker io) throws IOException {
+        RecordCountMap map = new RecordCountMap(tableCapacity);
+        RunWriter[] sub = null;
+        IOTracker[] subSpans = null;
+        List<File> subFiles = null;
+        try (RunReader rr = new RunReader(part, io, PARTITION_BUFFER, true)) {
+            while (rr.peek() != null) {
+                int count = rr.count();
+                byte[] r = rr.next();
+                if (sub == null && map.add(r, 0, count)) continue;
+                if (depth >= MAX_DEPTH) {
+                    if (map.size() == tableCapacity && sortedParts.isEmpty()) {
+                        System.out.println("Hash union: partition still exceeds memory after " + MAX_DEPTH
+                                + " levels, sorting it in table sized runs");
+                    }
+                    sortedParts.add(writeSortedRun(map, depth, io));
+                    map.add(r, 0, count);
+                    continue;
+                }
+                if (sub == null) {
+                    // the partition's slots bound its distinct records
+                    int ways = fanOut(part.length() / RunReader.slotWidth(true), tableCapacity, tableBytes);
+                    subFiles = new ArrayList<>();
+                    subSpans = new IOTracker[ways];
+                    sub = openPartitions(ways, depth + 1, subFiles, subSpans, io);
+                    spillMap(map, sub, depth + 1);
+                    map = null; // the partition buffers take its memory
+                }
+                sub[partition(r, 0, depth + 1, sub.length)].write(r, 0, count);
+            }
+        } finally {
+            closeAll(sub, subSpans);
+        }
+        part.delete();
+        io.flushPartialBlocks();
+
+        if (sub != null) {
+            for (File f : subFiles) aggregatePartition(f, depth + 1, tableCapacity, tableBytes, sortedParts, io);
+            return;
+        }
+        if (!map.isEmpty()) sortedParts.add(writeSortedRun(map, depth, io));
+    }
+
+    // the table as a sorted counted run, which leaves it empty
+    private File writeSortedRun(RecordCountMap map, int depth, IOTracker io) throws IOException {
+        map.sortKeys();
+        File sorted = spillFile(depth + 1, ".run");
+        try (RunWriter w = new RunWriter(sorted, io, PARTITION_BUFFER, true)) {
+            for (int i = 0; i < map.size(); i++) {
+                int r = map.sortedAt(i);
+                w.write(map.data(), r * W, map.count(r));
+            }
+        }
+        io.flushPartialBlocks();
+        map.clear();
+        return sorted;
+    }
+
+    private MergeMetrics writeSorted(RecordCountMap map, BufferedWriter out, IOTracker io,
+                                     SparseIndex.Builder index) throws IOException {
+        MergeMetrics metrics = new MergeMetrics();
+        map.sortKeys();
+        char[] line = new char[W];
+        for (int i = 0; i < map.size(); i++) {
+            int r = map.sortedAt(i);
+            BagUnionMerger.emit(map.data(), r * W, key.width(), map.count(r), line, io, out, index);
+            metrics.distinctTuples++;
+        }
+        metrics.outputBlocks = MergeMetrics.blocksForTuples(metrics.distinctTuples);
+        io.flushPartialBlocks();
+        return metrics;
+    }
+
+    // writers for the partitions of level depth, one per slot of spans; each writes in a span of its own since their
+    // writes interleave and each ends in its own partial block
+    private RunWriter[] openPartitions(int ways, int depth, List<File> files, IOTracker[] spans, IOTracker io)
+            throws IOException {
+        RunWriter[] writers = new RunWriter[ways];
+        try {
+            for (int i = 0; i < ways; i++) {
+                File f = spillFile(depth, ".part");
+                files.add(f);
+                spans[i] = io.span(IOTracker.Kind.TASK, "level " + depth + " partition " + i);
+                writers[i] = new RunWriter(f, spans[i], PARTITION_BUFFER, true);
+            }
+        } catch (IOException e) {
+            closeAll(writers, spans);
+            throw e;
+        }
+        return writers;
+    }
+
+    // enough partitions that each should fit a table, with a quarter to spare for uneven hashing, as far as the
+    // table's memory holds their buffers; at least 2, a partition that still overflows is split again
+    private static int fanOut(long distinctBound, int tableCapacity, long tableBytes) {
+        long needed = (distinctBound + distinctBound / 4) / tableCapacity + 1;
+        long affordable = tableBytes / streamBytes();
+        return (int) Math.max(2, Math.min(MAX_PARTITIONS, Math.min(needed, affordable)));
+    }
+
+    // partitions of level d and the runs sorted from them alternate between spill directory sets like merge passes
+    private File spillFile(int level, String suffix) throws IOException {
+        return (spill == null) ? File.createTempFile("tpmms_hash_", suffix) : spill.newTempFile(level);
+    }
+
+    private void spillMap(RecordCountMap map, RunWriter[] writers, int seed) throws IOException {
+        byte[] data = map.data();
+        for (int r = 0; r < map.size(); r++) {
+            writers[partition(data, r * W, seed, writers.length)].write(data, r * W, map.count(r));
+        }
+        map.clear();
+    }
+
+    private static int partition(byte[] b, int off, int seed, int ways) {
+        return Math.floorMod(RecordCountMap.hash(b, off, seed), ways);
+    }
+
+    // bytes one partition stream holds: its BlockIO buffers
+    private static long streamBytes() {
+        return (long) PARTITION_BUFFER * BlockIO.defaultDepth();
+    }
+
+    private static void closeAll(RunWriter[] writers, IOTracker[] spans) throws IOException {
+        if (writers == null) return;
+        IOException first = null;
+        for (RunWriter w : writers) {
+            if (w == null) continue;
+            try {
+                w.close();
+            } catch (IOException e) {
+                if (first == null) first = e;
+            }
+        }
+        for (IOTracker span : spans) {
+            if (span == null) continue;
+            span.flushPartialBlocks();
+            span.close();
+        }
+        if (first != null) throw first;
+    }
+}
@@ -1,43 +1,330 @@
-public class IOTracker {
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe I/O and timing counters for one span of work: the whole job, a phase, a merge pass or one merge task.
+ * Spans form a tree, each one only counts its own work and the totals of a span include all of its children.
+ * Closing a span stops its clocks and commits it as a JFR event; MetricsReport writes the tree as JSON.
+ */
+public class IOTracker implements AutoCloseable {
 
     // 1 disk block holds 40 records
     private static final int TUPLES_PER_BLOCK = 40;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final OperatingSystemMXBean OS = ManagementFactory.getOperatingSystemMXBean();
+
+    public enum Kind { JOB, PHASE, PASS, TASK }
+
+    private final IOTracker parent;
+    private final Kind kind;
+    private final String name;
+    private final List<IOTracker> children = new CopyOnWriteArrayList<>();
 
+    // line counters, guarded by this
     private int readTuplesInCurrentBlock = 0;
     private int writtenTuplesInCurrentBlock = 0;
+    private long blocksRead = 0;
+    private long blocksWritten = 0;
+    private long recordsRead = 0;
+    private long recordsWritten = 0;
+
+    // byte counts and wait times also come from BlockIO threads
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder ioWaitNanos = new LongAdder();
+    private final AtomicLong peakHeapBytes = new AtomicLong();
+
+    private volatile int fanIn;
+    private volatile int runsIn;
+    private volatile int runsOut;
+
+    private final long startNanos;
+    private final long startCpuNanos;
+    private final long startThread;
+    private volatile long wallNanos = -1;
+    private volatile long cpuNanos = -1;
+    private final MetricsEvent event = new MetricsEvent();
 
-    public long totalBlocksRead = 0;
-    public long totalBlocksWritten = 0;
+    public IOTracker() {
+        this(null, Kind.JOB, "job");
+    }
+
+    private IOTracker(IOTracker parent, Kind kind, String name) {
+        this.parent = parent;
+        this.kind = kind;
+        this.name = name;
+        this.startThread = Thread.currentThread().getId();
+        this.startCpuNanos = cpuNow(kind);
+        this.startNanos = System.nanoTime();
+        samplePeakHeap();
+        event.begin();
+    }
+
+    // opens a child span; counts recorded on it are part of this span's totals
+    public IOTracker span(Kind kind, String name) {
+        IOTracker child = new IOTracker(this, kind, name);
+        children.add(child);
+        return child;
+    }
 
-    public void noteReadLine() {
+    public synchronized void noteReadLine() {
+        recordsRead++;
         readTuplesInCurrentBlock++;
 
         if (readTuplesInCurrentBlock == TUPLES_PER_BLOCK) {
-            totalBlocksRead++;
+            blocksRead++;
             readTuplesInCurrentBlock = 0;
             // start counting the next block
+            samplePeakHeap();
         }
     }
 
-    public void noteWriteLine() {
+    // a text input line of the given length, plus its line separator
+    public void noteReadLine(int chars) {
+        noteReadLine();
+        bytesRead.add(chars + 1);
+    }
+
+    // a batch of text input lines and their bytes, counted into blocks as noteReadLine would
+    public void noteReadLines(long lines, long bytes) {
+        synchronized (this) {
+            recordsRead += lines;
+            long tuples = readTuplesInCurrentBlock + lines;
+            blocksRead += tuples / TUPLES_PER_BLOCK;
+            readTuplesInCurrentBlock = (int) (tuples % TUPLES_PER_BLOCK);
+        }
+        bytesRead.add(bytes);
+        samplePeakHeap();
+    }
+
+    public synchronized void noteWriteLine() {
+        recordsWritten++;
         writtenTuplesInCurrentBlock++;
 
         if (writtenTuplesInCurrentBlock == TUPLES_PER_BLOCK) {
-            totalBlocksWritten++;
+            blocksWritten++;
             writtenTuplesInCurrentBlock = 0;
+            samplePeakHeap();
         }
     }
 
 
-    public void flushPartialBlocks() {
+    // a batch of output lines, counted into blocks as noteWriteLine would
+    public void noteWriteLines(long lines) {
+        synchronized (this) {
+            recordsWritten += lines;
+            long tuples = writtenTuplesInCurrentBlock + lines;
+            blocksWritten += tuples / TUPLES_PER_BLOCK;
+            writtenTuplesInCurrentBlock = (int) (tuples % TUPLES_PER_BLOCK);
+        }
+        samplePeakHeap();
+    }
+
+    public synchronized void flushPartialBlocks() {
         if (readTuplesInCurrentBlock > 0) {
-            totalBlocksRead++;
+            blocksRead++;
         }
         if (writtenTuplesInCurrentBlock > 0) {
-            totalBlocksWritten++;
+            blocksWritten++;
         }
 
         readTuplesInCurrentBlock = 0;
         writtenTuplesInCurrentBlock = 0;
     }
+
+    // blocks a worker process read and wrote for this span, it counts them in its own JVM
+    public synchronized void noteBlocks(long read, long written) {
+        blocksRead += read;
+        blocksWritten += written;
+    }
+
+    public void noteBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void noteBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    // time a worker spent blocked waiting for a read or write to finish
+    public void noteIoWait(long nanos) {
+        ioWaitNanos.add(nanos);
+    }
+
+    public void setFanIn(int fanIn) {
+        this.fanIn = fanIn;
+    }
+
+    public void setRuns(int runsIn, int runsOut) {
+        this.runsIn = runsIn;
+        this.runsOut = runsOut;
+    }
+
+    // stops the clocks; a span is closed once, by the thread that did its work
+    @Override
+    public void close() {
+        if (wallNanos >= 0) return;
+        samplePeakHeap();
+        wallNanos = System.nanoTime() - startNanos;
+        // a task's CPU time is its own thread's, a phase or pass counts the whole process
+        cpuNanos = (kind == Kind.TASK && Thread.currentThread().getId() != startThread)
+                ? -1 : cpuNow(kind) - startCpuNanos;
+        event.end();
+        if (event.shouldCommit()) {
+            event.kind = kind.name();
+            event.span = path();
+            event.blocksRead = blocksRead();
+            event.blocksWritten = blocksWritten();
+            event.bytesRead = bytesRead();
+            event.bytesWritten = bytesWritten();
+            event.recordsIn = recordsIn();
+            event.recordsOut = recordsOut();
+            event.cpuTime = cpuNanos;
+            event.ioWaitTime = ioWaitNanos();
+            event.peakHeap = peakHeapBytes();
+            event.fanIn = fanIn;
+            event.runsIn = runsIn;
+            event.runsOut = runsOut;
+            event.commit();
+        }
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    // names from the root down, e.g. "job/phase2 T1/pass 1/merge 0-511"
+    public String path() {
+        return parent == null ? name : parent.path() + "/" + name;
+    }
+
+    public List<IOTracker> children() {
+        return children;
+    }
+
+    public long totalBlocksRead() {
+        return blocksRead();
+    }
+
+    public long totalBlocksWritten() {
+        return blocksWritten();
+    }
+
+    public long blocksRead() {
+        long n;
+        synchronized (this) {
+            n = blocksRead;
+        }
+        for (IOTracker c : children) n += c.blocksRead();
+        return n;
+    }
+
+    public long blocksWritten() {
+        long n;
+        synchronized (this) {
+            n = blocksWritten;
+        }
+        for (IOTracker c : children) n += c.blocksWritten();
+        return n;
+    }
+
+    public long recordsIn() {
+        long n;
+        synchronized (this) {
+            n = recordsRead;
+        }
+        for (IOTracker c : children) n += c.recordsIn();
+        return n;
+    }
+
+    public long recordsOut() {
+        long n;
+        synchronized (this) {
+            n = recordsWritten;
+        }
+        for (IOTracker c : children) n += c.recordsOut();
+        return n;
+    }
+
+    public long bytesRead() {
+        long n = bytesRead.sum();
+        for (IOTracker c : children) n += c.bytesRead();
+        return n;
+    }
+
+    public long bytesWritten() {
+        long n = bytesWritten.sum();
+        for (IOTracker c : children) n += c.bytesWritten();
+        return n;
+    }
+
+    public long ioWaitNanos() {
+        long n = ioWaitNanos.sum();
+        for (IOTracker c : children) n += c.ioWaitNanos();
+        return n;
+    }
+
+    // time spent working rather than waiting on I/O: wall minus I/O wait for a task, summed over the tasks otherwise
+    public long computeNanos() {
+        if (kind == Kind.TASK || children.isEmpty()) {
+            long wall = wallNanos();
+            return Math.max(0, wall - ioWaitNanos.sum());
+        }
+        long n = 0;
+        for (IOTracker c : children) n += c.computeNanos();
+        return n;
+    }
+
+    public long peakHeapBytes() {
+        long peak = peakHeapBytes.get();
+        for (IOTracker c : children) peak = Math.max(peak, c.peakHeapBytes());
+        return peak;
+    }
+
+    // wall time so far for a span that is still open
+    public long wallNanos() {
+        long wall = wallNanos;
+        return wall >= 0 ? wall : System.nanoTime() - startNanos;
+    }
+
+    // -1 when not measurable
+    public long cpuNanos() {
+        return cpuNanos;
+    }
+
+    public int fanIn() {
+        return fanIn;
+    }
+
+    public int runsIn() {
+        return runsIn;
+    }
+
+    public int runsOut() {
+        return runsOut;
+    }
+
+    private void samplePeakHeap() {
+        Runtime rt = Runtime.getRuntime();
+        peakHeapBytes.accumulateAndGet(rt.totalMemory() - rt.freeMemory(), Math::max);
+    }
+
+    private static long cpuNow(Kind kind) {
+        if (kind == Kind.TASK && THREADS.isCurrentThreadCpuTimeSupported()) {
+            return THREADS.getCurrentThreadCpuTime();
+        }
+        if (OS instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) OS).getProcessCpuTime();
+        }
+        return 0;
+    }
 }
@@ -0,0 +1,135 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Folds a batch of changes into a previous bag union instead of recomputing it. The base is the previous sorted
+ * record:count text output, or the counted binary run written next to it; inserted records add to a record's
+ * multiplicity and deleted records subtract from it, and a record whose count drops to 0 leaves the union.
+ * Inserts and deletes arrive as sorted, aggregated runs, so one merge over base, inserts and deletes writes the new
+ * text output and the binary base for the next batch.
+ */
+public class IncrementalBagUnion {
+    private static final int W = Record.TOTAL_WIDTH;
+
+    // binary base file kept next to a text output
+    public static File baseRunFor(File output) {
+        return new File(output.getPath() + ".run");
+    }
+
+    public static MergeMetrics apply(File base, List<File> inserts, List<File> deletes, int bufferBytesPerRun,
+                                     SortKey sortKey, IOTracker io, BufferedWriter out, RunWriter baseOut,
+                                     SparseIndex.Builder index) throws IOException {
+        MergeMetrics metrics = new MergeMetrics();
+        char[] line = new char[W];
+        byte[] kb = new byte[W];
+        byte[] ki = new byte[W];
+        byte[] kd = new byte[W];
+        byte[] key = new byte[W];
+
+        // a binary base is just one more counted run on the insert side
+        boolean binary = base.getName().endsWith(".run");
+        List<File> plus = binary ? concat(base, inserts) : inserts;
+        try (TextBase text = binary ? null : new TextBase(base, sortKey.width(), bufferBytesPerRun, io);
+             KWayMerger ins = new KWayMerger(plus, io, bufferBytesPerRun, true);
+             KWayMerger del = new KWayMerger(deletes, io, bufferBytesPerRun, true)) {
+
+            int cb = (text == null) ? 0 : text.next(kb);
+            int ci = ins.nextGroup(ki);
+            int cd = del.nextGroup(kd);
+
+            while (cb > 0 || ci > 0 || cd > 0) {
+                byte[] min = null;
+                if (cb > 0) min = kb;
+                if (ci > 0 && (min == null || Record.compareBytes(ki, min) < 0)) min = ki;
+                if (cd > 0 && (min == null || Record.compareBytes(kd, min) < 0)) min = kd;
+                System.arraycopy(min, 0, key, 0, W);
+
+                long count = 0;
+                if (cb > 0 && Record.compareBytes(kb, key) == 0) {
+                    count += cb;
+                    cb = text.next(kb);
+                }
+                if (ci > 0 && Record.compareBytes(ki, key) == 0) {
+                    count += ci;
+                    ci = ins.nextGroup(ki);
+                }
+                if (cd > 0 && Record.compareBytes(kd, key) == 0) {
+                    count -= cd;
+                    cd = del.nextGroup(kd);
+                }
+
+                if (count > 0) {
+                    int c = Math.toIntExact(count);
+                    BagUnionMerger.emit(key, 0, sortKey.width(), c, line, io, out, index);
+                    baseOut.write(key, 0, c);
+                    metrics.distinctTuples++;
+                } else if (count < 0) {
+                    // more copies deleted than the union held, the record is simply gone
+                    metrics.overDeletedTuples++;
+                }
+            }
+        }
+
+        metrics.outputBlocks = MergeMetrics.blocksForTuples(metrics.distinctTuples);
+        io.flushPartialBlocks();
+        return metrics;
+    }
+
+    private static List<File> concat(File first, List<File> rest) {
+        File[] all = new File[rest.size() + 1];
+        all[0] = first;
+        for (int i = 0; i < rest.size(); i++) all[i + 1] = rest.get(i);
+        return List.of(all);
+    }
+
+    // previous key:count text output, one distinct key per line in sorted order; a projected key's line holds
+    // only its width bytes
+    private static final class TextBase implements Closeable {
+        private final InputStream in;
+        private final int width;
+        private final IOTracker io;
+        private final byte[] prev = new byte[W];
+        private long lineNo;
+
+        TextBase(File f, int width, int bufferBytes, IOTracker io) throws IOException {
+            this.in = new BufferedInputStream(new FileInputStream(f), Math.max(bufferBytes, 8192));
+            this.width = width;
+            this.io = io;
+        }
+
+        // reads the next line's key into a blank-padded slot and returns its count, 0 at the end
+        int next(byte[] key) throws IOException {
+            int n = in.readNBytes(key, 0, width);
+            if (n == 0) return 0;
+            lineNo++;
+            if (n < width || in.read() != ':') throw malformed();
+            Arrays.fill(key, width, W, (byte) ' ');
+            long count = 0;
+            int digits = 0;
+            int b;
+            while ((b = in.read()) >= '0' && b <= '9') {
+                count = count * 10 + (b - '0');
+                if (count > Integer.MAX_VALUE) throw malformed();
+                digits++;
+            }
+            if (b == '\r') b = in.read();
+            if (digits == 0 || count == 0 || (b != '\n' && b != -1)) throw malformed();
+            if (lineNo > 1 && Record.compareBytes(prev, key) >= 0) {
+                throw new IOException("Base union is not sorted at line " + lineNo);
+            }
+            System.arraycopy(key, 0, prev, 0, W);
+            io.noteReadLine(width + 1 + digits);
+            return (int) count;
+        }
+
+        private IOException malformed() {
+            return new IOException("Malformed base union line " + lineNo + ", expected key:count");
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
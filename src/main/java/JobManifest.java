@@ -0,0 +1,264 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of a sort job, kept in its run directory. It holds the input fingerprints, config and spill
+ * directories the job was started with, and for every relation the runs it is down to after Phase 1 (pass 0) and
+ * after each merge pass, with their lengths and CRC32C checksums. Runs are forced to disk before the entry naming
+ * them, and the runs an entry replaces are deleted only after it, so a restarted job resumes every relation from its
+ * last recorded pass.
+ * Runs in the spill directories that no entry references are orphans of the interrupted pass and are deleted on
+ * resume. A run is named in the journal by its spill directory's number and its file name, e.g. "1/tpmms_42.tmp".
+ */
+public class JobManifest {
+    public static final String FILE_NAME = "job.manifest";
+    private static final String HEADER = "tpmms-job 1";
+    private static final int FINGERPRINT_BYTES = 1 << 20; // checksummed at each end of an input
+
+    private final File dir;
+    private final List<File> spillDirs;
+    private final FileChannel log;
+    private final boolean resumed;
+    private final Map<String, String> checksums = new HashMap<>(); // run key -> "length crc"
+    private final Map<String, Integer> passes = new HashMap<>();
+    private final Map<String, List<File>> runs = new HashMap<>();
+
+    private JobManifest(File dir, List<File> spillDirs, boolean resumed) throws IOException {
+        this.dir = dir;
+        this.spillDirs = spillDirs;
+        this.resumed = resumed;
+        this.log = FileChannel.open(new File(dir, FILE_NAME).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // resumes the job journaled in dir if it was started on the same inputs (relation -> path), config and spill
+    // directories and did not finish; otherwise deletes the old runs and starts a new journal
+    public static JobManifest open(File dir, SpillDirectories spill, Map<String, String> inputs,
+                                   String config) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create run directory " + dir);
+        List<File> spillDirs = spill.dirs();
+        List<String> header = new ArrayList<>();
+        header.add(HEADER);
+        header.add("config " + config);
+        for (Map.Entry<String, String> in : new TreeMap<>(inputs).entrySet()) {
+            header.add("input " + in.getKey() + " " + fingerprint(new File(in.getValue())));
+        }
+        for (int i = 0; i < spillDirs.size(); i++) {
+            header.add("spill " + i + " " + spillDirs.get(i).getAbsolutePath());
+        }
+
+        List<String> entries = readEntries(new File(dir, FILE_NAME));
+        boolean resumable = entries.size() >= header.size()
+                && entries.subList(0, header.size()).equals(header)
+                && !entries.contains("done");
+        if (!resumable) {
+            spill.clear();
+            Files.deleteIfExists(new File(dir, FILE_NAME).toPath());
+            JobManifest m = new JobManifest(dir, spillDirs, false);
+            for (String line : header) m.append(line);
+            return m;
+        }
+
+        // replay, keep each relation's last state whose runs are all intact, and compact the journal to that
+        Map<String, String> sums = new HashMap<>();
+        Map<String, String> states = new TreeMap<>();
+        for (String line : entries.subList(header.size(), entries.size())) {
+            String[] f = line.split(" ", 3);
+            if (f[0].equals("run") && f.length == 3) sums.put(f[1], f[2]);
+            else if (f[0].equals("state") && f.length == 3) states.put(f[1], f[2]);
+        }
+        List<String> kept = new ArrayList<>(header);
+        Set<String> referenced = new HashSet<>();
+        for (Map.Entry<String, String> s : states.entrySet()) {
+            String[] f = s.getValue().split(" ");
+            List<String> keys = List.of(f).subList(1, f.length);
+            if (!intact(spillDirs, keys, sums)) {
+                System.out.println("Job manifest: " + s.getKey() + " runs are damaged or missing, redoing it");
+                continue;
+            }
+            for (String key : keys) kept.add("run " + key + " " + sums.get(key));
+            kept.add("state " + s.getKey() + " " + s.getValue());
+            referenced.addAll(keys);
+        }
+        File compacted = new File(dir, FILE_NAME + ".tmp");
+        try (FileChannel ch = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.write(ByteBuffer.wrap((String.join("\n", kept) + "\n").getBytes(StandardCharsets.UTF_8)));
+            ch.force(true);
+        }
+        Files.move(compacted.toPath(), new File(dir, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        deleteOrphans(spillDirs, referenced);
+
+        JobManifest m = new JobManifest(dir, spillDirs, true);
+        for (String line : kept.subList(header.size(), kept.size())) {
+            String[] f = line.split(" ");
+            if (f[0].equals("run")) {
+                m.checksums.put(f[1], f[2] + " " + f[3]);
+            } else {
+                List<File> files = new ArrayList<>();
+                for (int i = 3; i < f.length; i++) files.add(file(spillDirs, f[i]));
+                m.passes.put(f[1], Integer.parseInt(f[2]));
+                m.runs.put(f[1], files);
+            }
+        }
+        return m;
+    }
+
+    public File dir() {
+        return dir;
+    }
+
+    public boolean resumed() {
+        return resumed;
+    }
+
+    public synchronized boolean hasRuns(String rel) {
+        return runs.containsKey(rel);
+    }
+
+    // runs of the relation's last recorded state
+    public synchronized List<File> runs(String rel) {
+        return new ArrayList<>(runs.getOrDefault(rel, List.of()));
+    }
+
+    // pass of the relation's last recorded state, 0 = Phase 1
+    public synchronized int pass(String rel) {
+        return passes.getOrDefault(rel, 0);
+    }
+
+    // makes the relation's runs after `pass` durable, then deletes the earlier runs they replace
+    public synchronized void record(String rel, int pass, List<File> current) throws IOException {
+        StringBuilder state = new StringBuilder("state " + rel + " " + pass);
+        for (File f : current) {
+            String key = key(f);
+            if (!checksums.containsKey(key)) {
+                String sum = checksum(f, true);
+                checksums.put(key, sum);
+                append("run " + key + " " + sum);
+            }
+            state.append(' ').append(key);
+        }
+        append(state.toString());
+
+        Set<String> kept = new HashSet<>();
+        for (File f : current) kept.add(key(f));
+        for (File old : runs.getOrDefault(rel, List.of())) {
+            if (!kept.contains(key(old))) {
+                checksums.remove(key(old));
+                if (!old.delete()) System.err.println("Could not delete: " + old.getAbsolutePath());
+            }
+        }
+        passes.put(rel, pass);
+        runs.put(rel, new ArrayList<>(current));
+    }
+
+    // the job is complete, a later start begins a new one
+    public synchronized void finish() throws IOException {
+        append("done");
+        log.close();
+    }
+
+    private void append(String line) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (b.hasRemaining()) log.write(b);
+        log.force(false);
+    }
+
+    // whole lines only, a line torn by a crash is ignored
+    private static List<String> readEntries(File f) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (!f.isFile()) return lines;
+        String text = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+        int start = 0;
+        for (int nl = text.indexOf('\n'); nl >= 0; nl = text.indexOf('\n', start)) {
+            lines.add(text.substring(start, nl));
+            start = nl + 1;
+        }
+        return lines;
+    }
+
+    // "<spill directory number>/<file name>"
+    private String key(File run) throws IOException {
+        File parent = run.getAbsoluteFile().getParentFile();
+        for (int i = 0; i < spillDirs.size(); i++) {
+            if (spillDirs.get(i).getAbsoluteFile().equals(parent)) return i + "/" + run.getName();
+        }
+        throw new IOException("Run " + run + " is outside the spill directories " + spillDirs);
+    }
+
+    private static File file(List<File> spillDirs, String key) {
+        int slash = key.indexOf('/');
+        return new File(spillDirs.get(Integer.parseInt(key.substring(0, slash))), key.substring(slash + 1));
+    }
+
+    private static boolean intact(List<File> spillDirs, List<String> keys, Map<String, String> sums)
+            throws IOException {
+        for (String key : keys) {
+            File f = file(spillDirs, key);
+            String sum = sums.get(key);
+            if (sum == null || !f.isFile() || !sum.startsWith(f.length() + " ")) return false;
+            if (!sum.equals(checksum(f, false))) return false;
+        }
+        return true;
+    }
+
+    // "length crc32c" of a whole file, optionally forcing it to disk first
+    private static String checksum(File f, boolean force) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            if (force) ch.force(true);
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+            while (ch.read(buf) > 0) {
+                buf.flip();
+                crc.update(buf);
+                buf.clear();
+            }
+            return ch.size() + " " + Long.toHexString(crc.getValue());
+        }
+    }
+
+    // size, modification time and a checksum of both ends, then the path
+    private static String fingerprint(File f) throws IOException {
+        if (!f.isFile()) throw new IOException("Input not found: " + f);
+        CRC32C crc = new CRC32C();
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size, FINGERPRINT_BYTES));
+            crc.update(BlockIO.readFully(ch, buf, 0));
+            if (size > FINGERPRINT_BYTES) {
+                buf.clear();
+                crc.update(BlockIO.readFully(ch, buf, size - buf.capacity()));
+            }
+            return size + " " + f.lastModified() + " " + Long.toHexString(crc.getValue()) + " "
+                    + f.getAbsolutePath();
+        }
+    }
+
+    private static void deleteOrphans(List<File> spillDirs, Set<String> referenced) {
+        for (int i = 0; i < spillDirs.size(); i++) {
+            File[] files = spillDirs.get(i).listFiles();
+            if (files == null) continue;
+            for (File f : files) {
+                if (f.isFile() && SpillDirectories.isRunFile(f.getName())
+                        && !referenced.contains(i + "/" + f.getName()) && !f.delete()) {
+                    System.err.println("Could not delete: " + f.getAbsolutePath());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** K way merge of sorted runs, one input buffer per run and a min heap over the current heads */
+public class KWayMerger implements Closeable {
+    private final List<RunReader> readers = new ArrayList<>();
+    private final PriorityQueue<RunReader> heap;
+
+    public KWayMerger(List<File> runs, IOTracker io, int bufferBytesPerRun, boolean counted) throws IOException {
+        this.heap = newHeap(runs.size());
+        try {
+            for (File run : runs) {
+                add(new RunReader(run, io, bufferBytesPerRun, counted));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // merges readers that are already open, e.g. slot ranges of runs; takes ownership of them
+    public KWayMerger(List<RunReader> inputs) {
+        this.heap = newHeap(inputs.size());
+        for (RunReader rr : inputs) {
+            add(rr);
+        }
+    }
+
+    private static PriorityQueue<RunReader> newHeap(int n) {
+        return new PriorityQueue<>(Math.max(1, n),
+                (a, b) -> Record.compareBytes(a.peekKey(), a.peek(), 0, b.peekKey(), b.peek(), 0));
+    }
+
+    private void add(RunReader rr) {
+        readers.add(rr);
+        if (rr.peek() != null) heap.add(rr);
+    }
+
+    public byte[] peek() {
+        RunReader top = heap.peek();
+        return (top != null) ? top.peek() : null;
+    }
+
+    // next record in sorted order across all runs, null when every run is drained
+    public byte[] next() throws IOException {
+        RunReader top = heap.poll();
+        if (top == null) return null;
+        byte[] r = top.next();
+        if (top.peek() != null) heap.add(top);
+        return r;
+    }
+
+    // copies the smallest key into keyOut and consumes every copy of it across all runs;
+    // returns the summed multiplicity, 0 when every run is drained
+    public int nextGroup(byte[] keyOut) throws IOException {
+        RunReader top = heap.peek();
+        if (top == null) return 0;
+        System.arraycopy(top.peek(), 0, keyOut, 0, Record.TOTAL_WIDTH);
+        long key = top.peekKey();
+        int count = 0;
+        while (top != null && Record.compareBytes(top.peekKey(), top.peek(), 0, key, keyOut, 0) == 0) {
+            heap.poll();
+            count = Math.addExact(count, top.count());
+            top.next();
+            if (top.peek() != null) heap.add(top);
+            top = heap.peek();
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException first = null;
+        for (RunReader rr : readers) {
+            try {
+                rr.close();
+            } catch (IOException e) {
+                if (first == null) first = e;
+            }
+        }
+        if (first != null) throw first;
+    }
+}
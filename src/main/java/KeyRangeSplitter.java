@@ -0,0 +1,84 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Samples sorted runs to pick splitters, so one big merge can be cut into disjoint key ranges */
+public class KeyRangeSplitter {
+    private static final int SAMPLES_PER_RANGE = 32;
+
+    private final List<File> runs;
+    private final List<byte[]> splitters;
+    // bounds[r][i] = first slot of run r in range i, bounds[r][ranges] = slot count
+    private final long[][] bounds;
+
+    public KeyRangeSplitter(List<File> runs, int ranges) throws IOException {
+        this.runs = runs;
+        long totalSlots = 0;
+        for (File run : runs) totalSlots += RunReader.slotCount(run);
+        long stride = Math.max(1, totalSlots / ((long) ranges * SAMPLES_PER_RANGE));
+
+        // evenly spaced slots from every run, so bigger runs get proportionally more samples
+        List<byte[]> samples = new ArrayList<>();
+        for (File run : runs) {
+            try (FileChannel ch = FileChannel.open(run.toPath(), StandardOpenOption.READ)) {
+                long slots = RunReader.slotCount(run);
+                for (long s = stride / 2; s < slots; s += stride) {
+                    byte[] b = new byte[Record.TOTAL_WIDTH];
+                    RunReader.readSlot(ch, s, b);
+                    samples.add(b);
+                }
+            }
+        }
+        samples.sort(Record::compareBytes);
+
+        this.splitters = new ArrayList<>();
+        for (int i = 1; i < ranges && !samples.isEmpty(); i++) {
+            byte[] candidate = samples.get((int) ((long) i * samples.size() / ranges));
+            // equal splitters would give empty ranges
+            if (splitters.isEmpty() || Record.compareBytes(splitters.get(splitters.size() - 1), candidate) < 0) {
+                splitters.add(candidate);
+            }
+        }
+
+        this.bounds = new long[runs.size()][];
+        for (int r = 0; r < runs.size(); r++) {
+            File run = runs.get(r);
+            long slots = RunReader.slotCount(run);
+            long[] b = new long[splitters.size() + 2];
+            try (FileChannel ch = FileChannel.open(run.toPath(), StandardOpenOption.READ)) {
+                for (int i = 0; i < splitters.size(); i++) {
+                    b[i + 1] = RunReader.lowerBound(ch, slots, splitters.get(i));
+                }
+            }
+            b[b.length - 1] = slots;
+            bounds[r] = b;
+        }
+    }
+
+    public int ranges() {
+        return splitters.size() + 1;
+    }
+
+    // slots before range i over all runs, i.e. where range i starts in the merged output
+    public long outputSlot(int range) {
+        long sum = 0;
+        for (long[] b : bounds) sum += b[range];
+        return sum;
+    }
+
+    // readers restricted to range i of every run
+    public List<RunReader> openRange(int range, IOTracker io, int bufferBytesPerRun) throws IOException {
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (int r = 0; r < runs.size(); r++) {
+                readers.add(new RunReader(runs.get(r), io, bufferBytesPerRun, bounds[r][range], bounds[r][range + 1]));
+            }
+        } catch (IOException e) {
+            for (RunReader rr : readers) rr.close();
+            throw e;
+        }
+        return readers;
+    }
+}
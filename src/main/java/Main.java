@@ -1,60 +1,132 @@
 import java.io.*;
+import java.nio.file.Path;
 import java.util.*;
 
+/**
+ * Command line front end of BagUnionJob: Main [--option=value ...] [T1 [T2 [OUTPUT]]]. Every option can also be given
+ * as the system property tpmms.&lt;option&gt;, the command line wins. With no file arguments the 1m sample inputs are
+ * united into src/outputfile/BagUnion_Output.txt, with runs and the job manifest below src/outputfile/runs.
+ *
+ * The defaults run the original job: one thread, merge sort, a fifth of the heap and TPMMS without aggregation.
+ * Faster paths are opt-in, e.g. --threads=8 --sort=RADIX --aggregate=true --union=AUTO --memory=512m.
+ */
 public class Main {
+    private static final String RUN_DIR = "src/outputfile/runs";
+    private static final String OUTPUT = "src/outputfile/BagUnion_Output.txt";
 
     public static void main(String[] args) throws Exception {
-        String t1Path = (args.length > 1) ? args[1] : "src/inputfile/T1_records_1m.txt";
-        String t2Path = (args.length > 2) ? args[2] : "src/inputfile/T2_records_1m.txt";
-        clearOutputDir("src/outputfile");
-        clearOutputDir("src/outputfile/runs");
-        long maxHeapMB = Runtime.getRuntime().maxMemory() / (1024 * 1024);
-
-        long memMB=maxHeapMB/5;
-        System.out.println("JVM maxHeap MB = " + maxHeapMB + " | memMB for TPMMS = " + memMB);
-        if (maxHeapMB < memMB) {
-            System.out.println("WARNING: -Xmx is less than requested memMB; set  -Xmx" + (memMB + 64) + "m");
+        Map<String, String> options = new HashMap<>();
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                files.add(arg);
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Expected --option=value: " + arg);
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
         }
-        IOTracker io = new IOTracker();
-        TPMMS sorter = new TPMMS(memMB, io);
-
-        // PHASE 1: create runs for T1 and T2
-        long p1Start = System.currentTimeMillis();
-
-        List<File> t1Runs = sorter.createInitialRuns(t1Path, "src/outputfile/runs/T1");
-        List<File> t2Runs = sorter.createInitialRuns(t2Path, "src/outputfile/runs/T2");
+        if (files.size() > 3) throw new IllegalArgumentException("Usage: Main [--option=value ...] [T1 [T2 [OUTPUT]]]");
+        BagUnionJob.Builder job = configure(options);
 
-        long p1End = System.currentTimeMillis();
-        System.out.println("Phase 1 run generation: " + (p1End - p1Start) + " ms");
-        System.out.println("After Phase 1, total I/Os R=" + io.totalBlocksRead + " W=" + io.totalBlocksWritten);
-        System.out.println("T1 runs: " + t1Runs.size() + ", T2 runs: " + t2Runs.size());
-  // PHASE 2: merge all runs for T1 and T2, then bag union
-
-        long p2Start = System.currentTimeMillis();
-
-        //  TPMMS for T1 and T2
-        File t1Sorted = sorter.multiPassMerge(t1Runs, "T1");
-        File t2Sorted = sorter.multiPassMerge(t2Runs, "T2");
+        // set on a worker JVM of a partitioned job: the key range directory it sorts and unites
+        String worker = option(options, "worker", "");
+        if (!worker.isEmpty()) {
+            job.t1(Path.of(worker, "T1.txt")).t2(Path.of(worker, "T2.txt")).output(Path.of(worker, "out.txt"));
+            BagUnionJob.Result r = job.build().runRange(new File(worker));
+            writeMetrics(r, option(options, "metrics", ""));
+            return;
+        }
 
-        File output = new File("src/outputfile/BagUnion_Output.txt");
-        MergeMetrics resultMetrics;
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(output))) {
-            resultMetrics = BagUnionMerger.mergeAndWrite(
-                    t1Sorted.toPath(),
-                    t2Sorted.toPath(),
-                    io,
-                    bw);
+        // incremental mode: fold a batch of changes into a previous union, --base=<previous BagUnion_Output.txt or its
+        // .run>; the first input file holds the appended records and --deletes=<file> the removed ones
+        String base = option(options, "base", "");
+        String deletes = option(options, "deletes", "");
+        String output = (files.size() > 2) ? files.get(2) : OUTPUT;
+        if (!base.isEmpty()) {
+            if (!files.isEmpty()) job.t1(Path.of(files.get(0)));
+            job.incremental(Path.of(base), deletes.isEmpty() ? null : BagUnionJob.Source.of(Path.of(deletes)));
+        } else {
+            job.t1(Path.of((files.size() > 0) ? files.get(0) : "src/inputfile/T1_records_1m.txt"));
+            job.t2(Path.of((files.size() > 1) ? files.get(1) : "src/inputfile/T2_records_1m.txt"));
+            // the default output directory only holds this tool's results, the job manifest decides what of the
+            // run directory survives
+            if (output.equals(OUTPUT)) clearOutputDir("src/outputfile", RUN_DIR);
         }
+        job.output(Path.of(output));
+
+        BagUnionJob.Result r = job.build().run();
+        writeMetrics(r, option(options, "metrics", "src/outputfile/metrics.json"));
+    }
 
-        long p2End = System.currentTimeMillis();
+    // every job setting from --options and tpmms.* properties
+    private static BagUnionJob.Builder configure(Map<String, String> options) throws IOException {
+        BagUnionJob.Builder job = BagUnionJob.builder();
+        // stream the last merge pass of T1 and T2 directly into the bag union (--fused=false to disable)
+        job.fused(Boolean.parseBoolean(option(options, "fused", "true")));
+        // Phase 1 strategy: LOAD_SORT or REPLACEMENT_SELECTION (--runs=...)
+        job.runGeneration(TPMMS.RunGeneration.valueOf(option(options, "runs", "LOAD_SORT")));
+        // Phase 1 in-memory sort: RADIX (MSD radix on the packed prefix key) or MERGE (--sort=...)
+        job.sortAlgorithm(RecordArena.SortAlgorithm.valueOf(option(options, "sort", "MERGE")));
+        // Phase 1 sort threads (--threads=N); above 1, T1 and T2 also generate runs concurrently when both fit
+        // their half of the budget
+        job.threads(Integer.parseInt(option(options, "threads", "1")));
+        // buffers per run stream: 1 = synchronous I/O, 2+ = read-ahead / write-behind (--ioDepth=N)
+        job.ioDepth(Integer.parseInt(option(options, "ioDepth", "2")));
+        // collapse duplicates into (record, count) slots from Phase 1 on (--aggregate=true)
+        job.aggregate(Boolean.parseBoolean(option(options, "aggregate", "false")));
+        // intermediate run compression: NONE, PREFIX or DEFLATE (--compress=...)
+        job.compression(RunCodec.Kind.valueOf(option(options, "compress", "NONE")));
+        // bag union engine: SORT (TPMMS), HASH, or AUTO to pick by estimated cost (--union=...)
+        job.strategy(BagUnionJob.Strategy.valueOf(option(options, "union", "SORT")));
+        // bytes for sort buffers, merge buffers and hash tables, e.g. --memory=512m; default a fifth of the heap
+        String memory = option(options, "memory", "");
+        if (!memory.isEmpty()) job.memory(MemoryBudget.parseBytes(memory));
+        // journal Phase 1 and merge passes in the run directory and resume an interrupted sort from its last recorded
+        // pass (--resume=false to always start over)
+        job.workDir(new File(RUN_DIR));
+        job.resume(Boolean.parseBoolean(option(options, "resume", "true")));
+        // directories runs are striped over, one per disk, e.g. --spillDirs=/mnt/nvme0/tpmms,/mnt/nvme1/tpmms;
+        // ROUND_ROBIN or FREE_SPACE placement of runs within them (--spillPlacement=...)
+        SpillDirectories.Placement placement =
+                SpillDirectories.Placement.valueOf(option(options, "spillPlacement", "ROUND_ROBIN"));
+        String spillDirs = option(options, "spillDirs", "");
+        job.spillDirectories(spillDirs.isEmpty() ? null : SpillDirectories.parse(spillDirs, placement).dirs(),
+                placement);
+        // operator on the sorted T1 and T2 streams: UNION, INTERSECTION, DIFFERENCE (T1 - T2) or DISTINCT (--op=...)
+        job.operator(SetOperator.Bag.valueOf(option(options, "op", "UNION")));
+        // fields to sort and group on, e.g. --key=ID or --key=DEPARTMENT,PROGRAM; RECORD for the whole record
+        job.key(SortKey.parse(option(options, "key", "RECORD")));
+        // scan the inputs first: reject lines shorter than a record, count records and estimate distinct ones for the
+        // sort vs hash choice and the Phase 1 buffer size (--preflight=false to skip)
+        job.preflight(Boolean.parseBoolean(option(options, "preflight", "true")));
+        // sparse block index next to the output for count / student ID / ID range lookups (--index=false to skip);
+        // only for whole record keys
+        job.index(Boolean.parseBoolean(option(options, "index", "true")));
+        // range partitioned execution: --partitions=P scatters T1 and T2 into P key ranges that are sorted and united
+        // independently, then concatenated; --workers=THREADS runs the ranges in this JVM, PROCESSES in one worker
+        // JVM each
+        job.partitions(Integer.parseInt(option(options, "partitions", "1")),
+                BagUnionJob.Workers.valueOf(option(options, "workers", "THREADS")));
+        return job;
+    }
 
-        System.out.println("Distinct tuples: " + resultMetrics.distinctTuples);
-        System.out.println("Output blocks 40 block: " + resultMetrics.outputBlocks);
-        System.out.println("After Phase 2, total I/Os R=" + io.totalBlocksRead + " W=" + io.totalBlocksWritten);
-        System.out.println("Phase 2 TPMMS multi pass + bag union: " + (p2End - p2Start) + " ms");
+    // --name=value, else the tpmms.name system property, else the default
+    private static String option(Map<String, String> options, String name, String def) {
+        String v = options.get(name);
+        return (v != null) ? v : System.getProperty("tpmms." + name, def);
+    }
 
+    // JSON summary of every phase, pass and merge task (--metrics=path, empty to skip)
+    private static void writeMetrics(BagUnionJob.Result r, String path) throws IOException {
+        System.out.println("Memory budget peak leased MB = " + r.peakMemoryBytes / (1024 * 1024));
+        if (path.isEmpty()) return;
+        MetricsReport.write(r.io, new File(path));
+        System.out.println("Metrics written to " + path);
     }
-    private static void clearOutputDir(String dirPath) {
+
+    // deletes everything in dirPath except the subdirectory `keep` (null to clear it too)
+    private static void clearOutputDir(String dirPath, String keep) {
         File dir = new File(dirPath);
         if (!dir.exists()) {
             // create it if it doesn't exist
@@ -68,6 +140,7 @@ public class Main {
         if (files == null) return;
 
         for (File f : files) {
+            if (keep != null && f.equals(new File(keep))) continue;
             if (f.isDirectory()) {
                 File[] inner = f.listFiles();
                 if (inner != null) {
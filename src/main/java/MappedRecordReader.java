@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Phase 1 input: maps the text file in large windows and parses its lines straight into a sort buffer, without a
+ * String per line. A window holds at most as many lines as the buffer has room for and ends at a line break; on a
+ * pool it is cut into segments at line breaks, the lines of each segment are counted, and every segment is then
+ * parsed in parallel into its own slots of the buffer.
+ */
+public class MappedRecordReader implements AutoCloseable {
+    private static final int W = Record.TOTAL_WIDTH;
+    private static final long MAP_WINDOW = 64L << 20;
+    private static final int MIN_SEGMENT = 1 << 20; // smaller windows are parsed on the calling thread
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final FileChannel ch;
+    private final long size;
+    private final IOTracker io;
+    private final SortKey key;
+    private final byte[] scratch = new byte[W];
+    private MappedByteBuffer map;
+    private long mapStart; // file offset of map index 0
+    private long pos;      // file offset of the next unread line
+
+    public MappedRecordReader(String path, IOTracker io) throws IOException {
+        this(path, io, SortKey.RECORD);
+    }
+
+    // every record is projected onto key as it is parsed
+    public MappedRecordReader(String path, IOTracker io, SortKey key) throws IOException {
+        this.ch = FileChannel.open(Path.of(path), StandardOpenOption.READ);
+        this.size = ch.size();
+        this.io = io;
+        this.key = key;
+    }
+
+    // fills the free slots of the arena, parsing on the pool when given; returns the records added, 0 at the end
+    public int fill(RecordArena arena, ForkJoinPool pool) throws IOException {
+        int added = 0;
+        while (!arena.isFull() && pos < size) {
+            // a record line is at least W + 1 bytes, so this many bytes cannot hold more lines than there is room for
+            long room = (long) (arena.capacity() - arena.size()) * (W + 1);
+            int to = window(room);
+            int from = (int) (pos - mapStart);
+            int segments = (pool == null) ? 1
+                    : (int) Math.min(pool.getParallelism() * 4L, Math.max(1, (to - from) / MIN_SEGMENT));
+            added += (segments > 1) ? parseParallel(arena, from, to, segments, pool) : parse(arena, from, to);
+            pos = mapStart + to;
+        }
+        return added;
+    }
+
+    // the next line normalized into dst[off, off + W), false at the end of the input
+    public boolean next(byte[] dst, int off) throws IOException {
+        if (pos >= size) return false;
+        int to = window(W + 2);
+        int end = parseLine((int) (pos - mapStart), to, dst, off, scratch);
+        io.noteReadLines(1, mapStart + end - pos);
+        pos = mapStart + end;
+        return true;
+    }
+
+    // maps from pos on if needed and returns the map index just past the last whole line within `bytes` of pos;
+    // a single line longer than that is taken whole
+    private int window(long bytes) throws IOException {
+        long want = Math.min(Math.min(bytes, MAP_WINDOW), size - pos);
+        if (map == null || pos + want > mapStart + map.limit()) remap();
+        int from = (int) (pos - mapStart);
+        int limit = map.limit();
+        int to = (int) Math.min(from + want, limit);
+        if (mapStart + to == size) return to; // the last line may lack its newline
+        for (int i = to - 1; i >= from; i--) {
+            if (map.get(i) == '\n') return i + 1;
+        }
+        int nl = nextNewline(to, limit);
+        if (nl >= 0) return nl + 1;
+        if (mapStart + limit == size) return limit;
+        if (from > 0) {
+            remap();
+            return window(bytes);
+        }
+        throw new IOException("Input line longer than " + MAP_WINDOW + " bytes at offset " + pos);
+    }
+
+    private void remap() throws IOException {
+        mapStart = pos;
+        map = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos));
+        map.order(ByteOrder.LITTLE_ENDIAN); // so the first byte of a getLong is the lowest
+    }
+
+    private int parse(RecordArena arena, int from, int to) {
+        byte[] data = arena.data();
+        int lines = 0;
+        for (int p = from; p < to; lines++) {
+            int r = arena.claim(1);
+            p = parseLine(p, to, data, r * W, scratch);
+            arena.seal(r);
+        }
+        io.noteReadLines(lines, to - from);
+        return lines;
+    }
+
+    private int parseParallel(RecordArena arena, int from, int to, int segments, ForkJoinPool pool) throws IOException {
+        int[] bounds = new int[segments + 1];
+        bounds[0] = from;
+        for (int s = 1; s < segments; s++) {
+            int cut = Math.max(bounds[s - 1], from + (int) ((long) (to - from) * s / segments));
+            int nl = nextNewline(cut, to);
+            bounds[s] = nl < 0 ? to : nl + 1;
+        }
+        bounds[segments] = to;
+
+        List<Callable<Integer>> counts = new ArrayList<>();
+        for (int s = 0; s < segments; s++) {
+            int a = bounds[s], b = bounds[s + 1];
+            counts.add(() -> countLines(a, b));
+        }
+        int[] first = new int[segments];
+        int total = 0;
+        List<Future<Integer>> counted = pool.invokeAll(counts);
+        for (int s = 0; s < segments; s++) {
+            first[s] = total;
+            total += await(counted.get(s));
+        }
+
+        if (total > arena.capacity() - arena.size()) {
+            return parse(arena, from, to); // only lines shorter than a record get here, and parse rejects them
+        }
+        int base = arena.claim(total);
+        byte[] data = arena.data();
+        List<Callable<Integer>> parses = new ArrayList<>();
+        for (int s = 0; s < segments; s++) {
+            int a = bounds[s], b = bounds[s + 1], r0 = base + first[s];
+            parses.add(() -> {
+                byte[] tmp = new byte[W];
+                int r = r0;
+                for (int p = a; p < b; r++) {
+                    p = parseLine(p, b, data, r * W, tmp);
+                    arena.seal(r);
+                }
+                return r - r0;
+            });
+        }
+        for (Future<Integer> f : pool.invokeAll(parses)) await(f);
+        io.noteReadLines(total, to - from);
+        return total;
+    }
+
+    private int countLines(int from, int to) {
+        int lines = 0;
+        for (int p = from; p < to; lines++) {
+            int nl = nextNewline(p, to);
+            p = nl < 0 ? to : nl + 1;
+        }
+        return lines;
+    }
+
+    // normalizes the line at p into dst[off, off + W), projected onto the key, and returns the map index just past
+    // its newline; tmp is the projection's scratch
+    private int parseLine(int p, int to, byte[] dst, int off, byte[] tmp) {
+        int nl = nextNewline(p, to);
+        int end = nl < 0 ? to : nl;
+        Record.normalize(map, p, end - p, dst, off);
+        key.project(dst, off, tmp);
+        return nl < 0 ? to : nl + 1;
+    }
+
+    // map index of the first '\n' in [from, to), -1 if none; tests 8 bytes at a time for a zero byte in x ^ '\n'
+    private int nextNewline(int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long x = map.getLong(i) ^ NEWLINES;
+            long found = (x - LOW_BITS) & ~x & HIGH_BITS;
+            if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+        for (; i < to; i++) {
+            if (map.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    private static int await(Future<Integer> f) throws IOException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing input", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        map = null;
+        ch.close();
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Explicit byte budget shared by Phase 1 sort buffers, merge stream buffers and hash tables. Every user leases the
+ * bytes it is about to allocate and returns them when done, so concurrent phases and merge workers can never add up
+ * to more than the budget; sizes such as run length and fan-in are derived from what is available.
+ */
+public final class MemoryBudget {
+    private final long totalBytes;
+    private final MemoryBudget parent; // also charged for every lease, null for a budget of its own
+    private long reserved;
+    private long peak;
+
+    public MemoryBudget(long totalBytes) {
+        this(totalBytes, null);
+    }
+
+    private MemoryBudget(long totalBytes, MemoryBudget parent) {
+        if (totalBytes <= 0) throw new IllegalArgumentException("Memory budget must be positive: " + totalBytes);
+        this.totalBytes = totalBytes;
+        this.parent = parent;
+    }
+
+    // a budget of `bytes` carved out of this one: its leases count here too, so this budget's peak covers them
+    public MemoryBudget share(long bytes) {
+        return new MemoryBudget(bytes, this);
+    }
+
+    // a share of the JVM heap, for callers that did not ask for an explicit size
+    public static MemoryBudget ofHeapShare(double share) {
+        return new MemoryBudget(Math.max(1, (long) (Runtime.getRuntime().maxMemory() * share)));
+    }
+
+    // "4g", "512m", "64k" or a plain byte count
+    public static long parseBytes(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = 1;
+        char last = s.isEmpty() ? ' ' : s.charAt(s.length() - 1);
+        if (last == 'k') unit = 1L << 10;
+        else if (last == 'm') unit = 1L << 20;
+        else if (last == 'g') unit = 1L << 30;
+        if (unit > 1) s = s.substring(0, s.length() - 1);
+        try {
+            return Math.multiplyExact(Long.parseLong(s.trim()), unit);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException("Bad memory size: " + size, e);
+        }
+    }
+
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long available() {
+        return totalBytes - reserved;
+    }
+
+    // most bytes leased at the same time so far
+    public synchronized long peakBytes() {
+        return peak;
+    }
+
+    public synchronized Lease reserve(long bytes) {
+        take(bytes);
+        return new Lease(bytes);
+    }
+
+    // bytes leased on this budget's behalf outside this JVM while what is reserved now is held, e.g. by worker
+    // processes; only raises the peak
+    public synchronized void notePeak(long bytes) {
+        peak = Math.max(peak, reserved + bytes);
+    }
+
+    // locks a share, then its parent
+    private synchronized void take(long bytes) {
+        if (bytes < 0 || bytes > totalBytes - reserved) {
+            throw new IllegalStateException("Memory budget exceeded: " + bytes + " bytes requested, "
+                    + (totalBytes - reserved) + " of " + totalBytes + " available");
+        }
+        if (parent != null) parent.take(bytes);
+        reserved += bytes;
+        peak = Math.max(peak, reserved);
+    }
+
+    private synchronized void release(long bytes) {
+        reserved -= bytes;
+        if (parent != null) parent.release(bytes);
+    }
+
+    /** Bytes held from the budget until closed */
+    public final class Lease implements AutoCloseable {
+        private final long bytes;
+        private boolean released;
+
+        private Lease(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+            synchronized (MemoryBudget.this) {
+                if (released) return;
+                released = true;
+                release(bytes);
+            }
+        }
+    }
+}
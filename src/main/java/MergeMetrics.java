@@ -3,8 +3,10 @@ public class MergeMetrics {
     public long outputBlocks;
     // assuming 40 tuples per block
 
+    // incremental union: records with more deletes than copies
+    public long overDeletedTuples;
+
     public static long blocksForTuples(long tuples) {
         return (tuples + 39) / 40;
     }
 }
-
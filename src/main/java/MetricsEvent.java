@@ -0,0 +1,60 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/** JFR event committed when an IOTracker span closes, its duration is the span's wall time */
+@Name("tpmms.Span")
+@Label("TPMMS Span")
+@Category("TPMMS")
+@Description("One phase, merge pass or merge task with its I/O, record counts and timings")
+class MetricsEvent extends jdk.jfr.Event {
+    @Label("Kind")
+    String kind;
+
+    @Label("Span")
+    String span;
+
+    @Label("Blocks Read")
+    long blocksRead;
+
+    @Label("Blocks Written")
+    long blocksWritten;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+    @Label("Records In")
+    long recordsIn;
+
+    @Label("Records Out")
+    long recordsOut;
+
+    @Label("CPU Time")
+    @Timespan
+    long cpuTime;
+
+    @Label("I/O Wait")
+    @Timespan
+    long ioWaitTime;
+
+    @Label("Peak Heap")
+    @DataAmount
+    long peakHeap;
+
+    @Label("Fan In")
+    int fanIn;
+
+    @Label("Runs In")
+    int runsIn;
+
+    @Label("Runs Out")
+    int runsOut;
+}
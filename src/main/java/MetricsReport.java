@@ -0,0 +1,61 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/** Writes an IOTracker span tree as a JSON summary, one object per span with its children nested */
+public final class MetricsReport {
+
+    private MetricsReport() {
+    }
+
+    public static void write(IOTracker root, File out) throws IOException {
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8))) {
+            write(root, w, "");
+            w.write(System.lineSeparator());
+        }
+    }
+
+    private static void write(IOTracker span, Writer w, String indent) throws IOException {
+        String in = indent + "  ";
+        w.write("{\n");
+        field(w, in, "kind", quote(span.kind().name()));
+        field(w, in, "name", quote(span.name()));
+        field(w, in, "wallNanos", span.wallNanos());
+        field(w, in, "cpuNanos", span.cpuNanos());
+        field(w, in, "ioWaitNanos", span.ioWaitNanos());
+        field(w, in, "computeNanos", span.computeNanos());
+        field(w, in, "blocksRead", span.blocksRead());
+        field(w, in, "blocksWritten", span.blocksWritten());
+        field(w, in, "bytesRead", span.bytesRead());
+        field(w, in, "bytesWritten", span.bytesWritten());
+        field(w, in, "recordsIn", span.recordsIn());
+        field(w, in, "recordsOut", span.recordsOut());
+        field(w, in, "peakHeapBytes", span.peakHeapBytes());
+        field(w, in, "fanIn", span.fanIn());
+        field(w, in, "runsIn", span.runsIn());
+        field(w, in, "runsOut", span.runsOut());
+        w.write(in + "\"children\": [");
+        String sep = "";
+        for (IOTracker child : span.children()) {
+            w.write(sep + "\n" + in + "  ");
+            write(child, w, in + "  ");
+            sep = ",";
+        }
+        w.write(span.children().isEmpty() ? "]\n" : "\n" + in + "]\n");
+        w.write(indent + "}");
+    }
+
+    private static void field(Writer w, String indent, String key, Object value) throws IOException {
+        w.write(indent + "\"" + key + "\": " + value + ",\n");
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
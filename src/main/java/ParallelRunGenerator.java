@@ -0,0 +1,128 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.IntFunction;
+
+/**
+ * Phase 1 pipeline: the caller maps the input and parses it into arenas on a fork/join pool, the same pool sorts them
+ * and a writer thread flushes runs. Two arenas of half the sort buffer each, so runs are half as long as a single
+ * threaded Phase 1 makes them: about twice the runs, in exchange for parsing one load while the last is sorted
+ * and written
+ */
+public class ParallelRunGenerator {
+    // one arena filling, the other sorting and then streaming to the writer; the free queue bounds memory to the two
+    static final int ARENAS = 2;
+
+    private final IOTracker io;
+    private final int arenaCapacity;
+    private final int threads;
+    private final int writeBufferBytes;
+    private final boolean counted;
+    private final RunCodec.Kind compression;
+    private final RecordArena.SortAlgorithm sortAlgorithm;
+    private final SortKey key;
+
+    public ParallelRunGenerator(IOTracker io, int maxRecordsInMem, int threads, int writeBufferBytes, boolean counted,
+                                RunCodec.Kind compression, RecordArena.SortAlgorithm sortAlgorithm, SortKey key) {
+        this.io = io;
+        this.arenaCapacity = Math.max(1, maxRecordsInMem / ARENAS);
+        this.threads = Math.max(1, threads);
+        this.writeBufferBytes = writeBufferBytes;
+        this.counted = counted;
+        this.compression = compression;
+        this.sortAlgorithm = sortAlgorithm;
+        this.key = key;
+    }
+
+    // runFile(n) is the file for run number n, counted from 1
+    public List<File> createRuns(String filePath, IntFunction<File> runFile) throws IOException {
+        BlockingQueue<RecordArena> free = new ArrayBlockingQueue<>(ARENAS);
+        for (int i = 0; i < ARENAS; i++) {
+            RecordArena arena = new RecordArena(arenaCapacity);
+            arena.setSortAlgorithm(sortAlgorithm);
+            free.add(arena);
+        }
+
+        ForkJoinPool sortPool = new ForkJoinPool(threads);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        List<CompletableFuture<File>> pending = new ArrayList<>();
+
+        try (MappedRecordReader in = new MappedRecordReader(filePath, io, key)) {
+            int runCount = 0;
+            while (true) {
+                RecordArena buffer = take(free, pending);
+                if (in.fill(buffer, sortPool) == 0) {
+                    free.add(buffer);
+                    break;
+                }
+                File f = runFile.apply(++runCount);
+                pending.add(sortAndWrite(buffer, f, free, sortPool, writer));
+            }
+
+            List<File> runs = new ArrayList<>(pending.size());
+            for (CompletableFuture<File> cf : pending) {
+                runs.add(await(cf));
+            }
+            io.flushPartialBlocks();
+            return runs;
+        } finally {
+            writer.shutdownNow();
+            sortPool.shutdownNow();
+        }
+    }
+
+    private CompletableFuture<File> sortAndWrite(RecordArena arena, File f, BlockingQueue<RecordArena> free,
+                                                 ForkJoinPool sortPool, ExecutorService writer) {
+        return CompletableFuture
+                .supplyAsync(() -> {
+                    arena.parallelSort(sortPool);
+                    return arena;
+                }, sortPool)
+                .thenApplyAsync(sorted -> {
+                    // a span per run, so its last partial block is counted on its own and not against another run
+                    try (IOTracker span = io.span(IOTracker.Kind.TASK, "write " + f.getName())) {
+                        try (RunWriter bw = new RunWriter(f, span, writeBufferBytes, counted, compression)) {
+                            sorted.writeSorted(bw);
+                        }
+                        span.flushPartialBlocks();
+                        span.setRuns(0, 1);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return f;
+                }, writer)
+                .whenComplete((done, err) -> {
+                    arena.clear();
+                    free.add(arena);
+                });
+    }
+
+    // waits for a free arena, failing fast if a sort or write already failed
+    private static RecordArena take(BlockingQueue<RecordArena> free,
+                                    List<CompletableFuture<File>> pending) throws IOException {
+        while (true) {
+            for (CompletableFuture<File> cf : pending) {
+                if (cf.isCompletedExceptionally()) await(cf);
+            }
+            try {
+                RecordArena arena = free.poll(100, TimeUnit.MILLISECONDS);
+                if (arena != null) return arena;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a sort buffer");
+            }
+        }
+    }
+
+    private static File await(CompletableFuture<File> cf) throws IOException {
+        try {
+            return cf.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
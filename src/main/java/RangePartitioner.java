@@ -0,0 +1,159 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits the inputs into key ranges so each range can be sorted and united on its own. Splitters are picked from
+ * records sampled at evenly spaced offsets of the inputs, on the 8-byte prefix of the sort key; all copies of a key
+ * share a prefix and land in the same range, and range i holds only keys below those of range i + 1, so the range
+ * outputs concatenated in order are the sorted output. A prefix shared by more records than a range should hold
+ * still goes to a single range. With a whole record key, the key prefixes a pre-flight scan sampled can stand in for
+ * the sampling read.
+ */
+public class RangePartitioner {
+    private static final int W = Record.TOTAL_WIDTH;
+    private static final int SAMPLES_PER_RANGE = 256;
+    private static final int MAX_SAMPLES = 1 << 16; // per input
+    private static final int SCATTER_BUFFER = 64 * 1024;
+
+    private final long[] splitters; // ascending unsigned, ranges - 1 of them
+    private final SortKey key;
+
+    public RangePartitioner(long[] splitters, SortKey key) {
+        this.splitters = splitters;
+        this.key = key;
+    }
+
+    // splitters for `ranges` ranges of about equal record counts over all the inputs
+    public static RangePartitioner sample(List<String> paths, SortKey key, int ranges) throws IOException {
+        int perInput = Math.min(MAX_SAMPLES, ranges * SAMPLES_PER_RANGE);
+        long[] samples = new long[paths.size() * perInput];
+        int n = 0;
+        byte[] rec = new byte[W];
+        byte[] scratch = new byte[W];
+        ByteBuffer buf = ByteBuffer.allocate(2 * (W + 2));
+        for (String path : paths) {
+            try (FileChannel ch = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+                long size = ch.size();
+                for (int s = 0; s < perInput && size > 0; s++) {
+                    // the first whole line at or after the sample offset
+                    long pos = size * s / perInput;
+                    long from = Math.max(0, pos - 1);
+                    buf.clear();
+                    byte[] b = BlockIO.readFully(ch, buf, from).array();
+                    int len = buf.limit();
+                    int start = 0;
+                    if (pos > 0) {
+                        while (start < len && b[start] != '\n') start++;
+                        start++;
+                    }
+                    int end = start;
+                    while (end < len && b[end] != '\n') end++;
+                    if (end - start < W) continue; // past the last line, or a line Phase 1 rejects anyway
+                    Record.normalize(b, start, end - start, rec, 0);
+                    key.project(rec, 0, scratch);
+                    samples[n++] = Record.prefixKey(rec, 0);
+                }
+            }
+        }
+        return new RangePartitioner(splitters(Arrays.copyOf(samples, n), ranges), key);
+    }
+
+    // the same from util.RecordCounter's key samples of each input, big endian prefixes of the raw lines, so the
+    // inputs are not read again. Only for the whole record key: a raw prefix is the record's first 8 bytes, the ID
+    // field, which is normalized here the way Phase 1 normalizes it. The padded line is a prefix longer than a
+    // record, so it still holds one when non-ASCII bytes in the prefix decode to fewer characters
+    public static RangePartitioner fromSamples(List<long[]> rawPrefixes, int ranges) {
+        long[] samples = rawPrefixes.stream().flatMapToLong(Arrays::stream).toArray();
+        byte[] line = new byte[W + Long.BYTES];
+        byte[] rec = new byte[W];
+        ByteBuffer prefix = ByteBuffer.wrap(line); // big endian
+        for (int i = 0; i < samples.length; i++) {
+            Arrays.fill(line, (byte) ' ');
+            prefix.putLong(0, samples[i]);
+            Record.normalize(line, 0, line.length, rec, 0);
+            samples[i] = Record.prefixKey(rec, 0);
+        }
+        return new RangePartitioner(splitters(samples, ranges), SortKey.RECORD);
+    }
+
+    // every (n * r / ranges)-th of the sorted samples, in place
+    private static long[] splitters(long[] samples, int ranges) {
+        int n = samples.length;
+        // Arrays.sort is signed, flip the sign bit for unsigned order
+        for (int i = 0; i < n; i++) samples[i] ^= Long.MIN_VALUE;
+        Arrays.sort(samples);
+        for (int i = 0; i < n; i++) samples[i] ^= Long.MIN_VALUE;
+
+        long[] splitters = new long[ranges - 1];
+        for (int r = 1; r < ranges; r++) {
+            splitters[r - 1] = (n == 0) ? -1L : samples[(int) ((long) n * r / ranges)];
+        }
+        return splitters;
+    }
+
+    public int ranges() {
+        return splitters.length + 1;
+    }
+
+    // range of a normalized, unprojected record: the number of splitters at or below its key prefix
+    public int rangeOf(byte[] rec, int off, byte[] tmp, byte[] scratch) {
+        System.arraycopy(rec, off, tmp, 0, W);
+        key.project(tmp, 0, scratch);
+        long prefix = Record.prefixKey(tmp, 0);
+        int lo = 0, hi = splitters.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(splitters[mid], prefix) <= 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // one pass over a text input: every record, normalized but not projected so a range re-reads it as input,
+    // goes to dirs[range]/name as one line
+    public long[] scatter(String path, File[] dirs, String name, IOTracker io) throws IOException {
+        long[] counts = new long[ranges()];
+        OutputStream[] out = new OutputStream[ranges()];
+        byte[] rec = new byte[W + 1];
+        byte[] tmp = new byte[W];
+        byte[] scratch = new byte[W];
+        rec[W] = '\n';
+        // a span per range file, the ranges' writes interleave and each ends in its own partial block
+        IOTracker[] spans = new IOTracker[ranges()];
+        try (MappedRecordReader in = new MappedRecordReader(path, io)) {
+            for (int r = 0; r < out.length; r++) {
+                spans[r] = io.span(IOTracker.Kind.TASK, name + " range " + r);
+                out[r] = new BlockWriter(new File(dirs[r], name), SCATTER_BUFFER, spans[r]);
+            }
+            while (in.next(rec, 0)) {
+                int r = rangeOf(rec, 0, tmp, scratch);
+                out[r].write(rec, 0, W + 1);
+                spans[r].noteWriteLine();
+                counts[r]++;
+            }
+        } finally {
+            IOException first = null;
+            for (OutputStream o : out) {
+                try {
+                    if (o != null) o.close();
+                } catch (IOException e) {
+                    if (first == null) first = e;
+                }
+            }
+            for (IOTracker span : spans) {
+                if (span == null) continue;
+                span.flushPartialBlocks();
+                span.close();
+            }
+            if (first != null) throw first;
+        }
+        io.flushPartialBlocks();
+        return counts;
+    }
+}
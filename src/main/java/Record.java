@@ -1,3 +1,10 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class Record implements Comparable<Record> {
 
@@ -18,6 +25,30 @@ public class Record implements Comparable<Record> {
     private static final int W_ADDR = 56;
     // Address
     public static final int TOTAL_WIDTH = W_ID + W_FIRST + W_LAST + W_DEPT + W_PROG + W_SIN + W_ADDR; // 100
+    // bytes packed into a prefix key: the whole zero padded student ID, which decides almost every comparison
+    public static final int KEY_BYTES = Long.BYTES;
+    // the student ID leads every normalized record
+    public static final int ID_WIDTH = W_ID;
+
+    /** Fixed width fields of a normalized record, in record order */
+    public enum Field {
+        ID(0, W_ID),
+        FIRST_NAME(W_ID, W_FIRST),
+        LAST_NAME(W_ID + W_FIRST, W_LAST),
+        DEPARTMENT(W_ID + W_FIRST + W_LAST, W_DEPT),
+        PROGRAM(W_ID + W_FIRST + W_LAST + W_DEPT, W_PROG),
+        SIN(W_ID + W_FIRST + W_LAST + W_DEPT + W_PROG, W_SIN),
+        ADDRESS(W_ID + W_FIRST + W_LAST + W_DEPT + W_PROG + W_SIN, W_ADDR);
+
+        public final int offset;
+        public final int width;
+
+        Field(int offset, int width) {
+            this.offset = offset;
+            this.width = width;
+        }
+    }
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
     private final String studentId; // length 8
     private final String firstName; // length 10
     private final String lastName;  // length 10
@@ -71,6 +102,96 @@ public class Record implements Comparable<Record> {
     }
     @Override public int compareTo(Record other) { return this.raw.compareTo(other.raw); }
 
+    // records are ASCII, so unsigned byte order on the serialized slot matches compareTo
+    public static int compareBytes(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, 0, TOTAL_WIDTH, b, 0, TOTAL_WIDTH);
+    }
+
+    public static int compareBytes(byte[] a, int aOff, byte[] b, int bOff) {
+        return Arrays.compareUnsigned(a, aOff, aOff + TOTAL_WIDTH, b, bOff, bOff + TOTAL_WIDTH);
+    }
+
+    // first KEY_BYTES of a normalized record as a big endian long; Long.compareUnsigned on two keys agrees with
+    // compareBytes on the records whenever the keys differ
+    public static long prefixKey(byte[] b, int off) {
+        return (long) LONG_BE.get(b, off);
+    }
+
+    // compareBytes for records whose prefix keys are already known, reads past the key only on a tie
+    public static int compareBytes(long aKey, byte[] a, int aOff, long bKey, byte[] b, int bOff) {
+        if (aKey != bKey) return Long.compareUnsigned(aKey, bKey);
+        return Arrays.compareUnsigned(a, aOff + KEY_BYTES, aOff + TOTAL_WIDTH, b, bOff + KEY_BYTES, bOff + TOTAL_WIDTH);
+    }
+
+    public byte[] toBytes() { return raw.getBytes(StandardCharsets.US_ASCII); }
+
+    // Same result as new Record(line).toBytes(), written straight into dst[off, off + TOTAL_WIDTH)
+    // so Phase 1 can fill a byte arena without allocating a Record and its strings per line
+    public static void normalize(String line, byte[] dst, int off) {
+        if (line == null) throw new IllegalArgumentException("line is null");
+        int len = line.length();
+        if (len > 0 && line.charAt(len - 1) == '\r') len--;
+        if (len < TOTAL_WIDTH) {
+            throw new IllegalArgumentException("Record line shorter than " + TOTAL_WIDTH + " chars: " + len);
+        }
+        for (int i = 0; i < TOTAL_WIDTH; i++) {
+            char c = line.charAt(i);
+            dst[off + i] = (c < 0x80) ? (byte) c : (byte) '?';
+        }
+        normalizeInPlace(dst, off);
+    }
+
+    // byte level variant, len is the line length without the '\n'; the same as the mapped input variant below
+    public static void normalize(byte[] src, int srcOff, int len, byte[] dst, int dstOff) {
+        normalize(ByteBuffer.wrap(src), srcOff, len, dst, dstOff);
+    }
+
+    // mapped input variant, len is the line length without the '\n'. A line with non-ASCII bytes is decoded the way
+    // the text reader decodes it and then normalized as a String, so a multi-byte character still takes one column
+    // and becomes '?'
+    public static void normalize(ByteBuffer src, int srcOff, int len, byte[] dst, int dstOff) {
+        if (len > 0 && src.get(srcOff + len - 1) == '\r') len--;
+        if (len < TOTAL_WIDTH) {
+            throw new IllegalArgumentException("Record line shorter than " + TOTAL_WIDTH + " chars: " + len);
+        }
+        src.get(srcOff, dst, dstOff, TOTAL_WIDTH);
+        for (int i = dstOff; i < dstOff + TOTAL_WIDTH; i++) {
+            if (dst[i] < 0) {
+                byte[] line = new byte[len];
+                src.get(srcOff, line, 0, len);
+                normalize(new String(line, Charset.defaultCharset()), dst, dstOff);
+                return;
+            }
+        }
+        normalizeInPlace(dst, dstOff);
+    }
+
+    // text fields are already right padded to their width, only the digit fields need work
+    private static void normalizeInPlace(byte[] b, int off) {
+        int p = off;
+        digitsInPlace(b, p, W_ID);
+        p += W_ID + W_FIRST + W_LAST;
+        digitsInPlace(b, p, W_DEPT);
+        p += W_DEPT;
+        digitsInPlace(b, p, W_PROG);
+        p += W_PROG;
+        digitsInPlace(b, p, W_SIN);
+    }
+
+    // strip spaces and left pad with '0', like padLeftDigits(stripSpaces(field), width)
+    private static void digitsInPlace(byte[] b, int start, int width) {
+        int j = start + width - 1;
+        for (int i = start + width - 1; i >= start; i--) {
+            if (b[i] != ' ') b[j--] = b[i];
+        }
+        while (j >= start) b[j--] = '0';
+    }
+
+    // a student ID as it appears in a normalized record, e.g. " 4217" -> "00004217"
+    public static String normalizeStudentId(String id) {
+        return padLeftDigits(stripSpaces(id), W_ID);
+    }
+
     @Override public String toString() { return raw; }
     @Override public int hashCode() { return raw.hashCode(); }
     @Override public boolean equals(Object o) { return (o instanceof Record) && raw.equals(((Record)o).raw); }
@@ -0,0 +1,256 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Phase 1 sort buffer: normalized records packed back to back in one byte[], sorted through an int[] index.
+ * Every record also keeps its packed prefix key, so most comparisons never touch the record bytes.
+ */
+public class RecordArena {
+    private static final int W = Record.TOTAL_WIDTH;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int PARALLEL_SORT_THRESHOLD = 8192;
+    private static final int RADIX_CUTOFF = 64; // smaller radix buckets are finished by the merge sort
+
+    /** Phase 1 sort */
+    public enum SortAlgorithm {
+        MERGE, // merge sort on prefix keys, full compare on ties
+        RADIX  // MSD radix sort on the prefix key bytes, merge sort for small buckets and key ties
+    }
+
+    private final byte[] data;
+    private final long[] keys; // prefix key per record number
+    private final int[] index;
+    private final int[] tmp;
+    private int size;
+    private SortAlgorithm algorithm = SortAlgorithm.MERGE;
+
+    public RecordArena(int capacity) {
+        this.data = new byte[capacity * W];
+        this.keys = new long[capacity];
+        this.index = new int[capacity];
+        this.tmp = new int[capacity];
+    }
+
+    // record bytes + prefix key + index + sort scratch
+    public static long bytesPerRecord() {
+        return W + Long.BYTES + 2L * Integer.BYTES;
+    }
+
+    public void setSortAlgorithm(SortAlgorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public static int maxCapacity() {
+        return Integer.MAX_VALUE / W;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return index.length;
+    }
+
+    public boolean isFull() {
+        return size == index.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(String line) {
+        Record.normalize(line, data, size * W);
+        keys[size] = Record.prefixKey(data, size * W);
+        index[size] = size;
+        size++;
+    }
+
+    // copies an already normalized record, returns its record number
+    public int add(byte[] src, int off) {
+        System.arraycopy(src, off, data, size * W, W);
+        keys[size] = Record.prefixKey(data, size * W);
+        index[size] = size;
+        return size++;
+    }
+
+    // reserves the next n record numbers for a parser that writes normalized records into data() itself and
+    // then seals each one; returns the first of them
+    public int claim(int n) {
+        if (n > index.length - size) {
+            throw new IllegalStateException("Sort buffer has room for " + (index.length - size));
+        }
+        int first = size;
+        size += n;
+        return first;
+    }
+
+    public void seal(int r) {
+        keys[r] = Record.prefixKey(data, r * W);
+        index[r] = r;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    // record number at sorted position i (valid after sort)
+    public int sortedAt(int i) {
+        return index[i];
+    }
+
+    public void sort() {
+        if (algorithm == SortAlgorithm.RADIX) {
+            radixSort(0, size, 0);
+        } else {
+            mergeSort(0, size);
+        }
+    }
+
+    // same sorts, halves or radix buckets above the threshold are sorted as fork/join tasks
+    public void parallelSort(ForkJoinPool pool) {
+        if (algorithm == SortAlgorithm.RADIX) {
+            pool.invoke(new RadixTask(0, size, 0));
+        } else {
+            pool.invoke(new SortTask(0, size));
+        }
+    }
+
+    private final class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+
+        SortTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_SORT_THRESHOLD) {
+                mergeSort(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SortTask(from, mid), new SortTask(mid, to));
+            merge(from, mid, to);
+        }
+    }
+
+    private final class RadixTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final int digit;
+
+        RadixTask(int from, int to, int digit) {
+            this.from = from;
+            this.to = to;
+            this.digit = digit;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_SORT_THRESHOLD || digit == Record.KEY_BYTES) {
+                radixSort(from, to, digit);
+                return;
+            }
+            int[] bounds = partition(from, to, digit);
+            List<RadixTask> buckets = new ArrayList<>();
+            for (int b = 0; b < 256; b++) {
+                if (bounds[b + 1] - bounds[b] > 1) buckets.add(new RadixTask(bounds[b], bounds[b + 1], digit + 1));
+            }
+            invokeAll(buckets);
+        }
+    }
+
+    public void writeSorted(RunWriter out) throws IOException {
+        for (int i = 0; i < size; i++) {
+            out.write(data, index[i] * W);
+        }
+    }
+
+    private int compare(int a, int b) {
+        return Record.compareBytes(keys[a], data, a * W, keys[b], data, b * W);
+    }
+
+    // MSD radix sort of index[from, to) from key byte `digit` on; records with equal keys are ordered by the merge sort
+    private void radixSort(int from, int to, int digit) {
+        if (to - from <= RADIX_CUTOFF || digit == Record.KEY_BYTES) {
+            mergeSort(from, to);
+            return;
+        }
+        int[] bounds = partition(from, to, digit);
+        for (int b = 0; b < 256; b++) {
+            if (bounds[b + 1] - bounds[b] > 1) radixSort(bounds[b], bounds[b + 1], digit + 1);
+        }
+    }
+
+    // distributes index[from, to) into 256 buckets by key byte `digit`, returns the bucket bounds (bucket b is
+    // [bounds[b], bounds[b + 1]))
+    private int[] partition(int from, int to, int digit) {
+        int shift = 8 * (Record.KEY_BYTES - 1 - digit);
+        int[] bounds = new int[257];
+        for (int i = from; i < to; i++) {
+            bounds[(int) (keys[index[i]] >>> shift & 0xFF) + 1]++;
+        }
+        bounds[0] = from;
+        boolean oneBucket = false;
+        for (int b = 0; b < 256; b++) {
+            if (bounds[b + 1] == to - from) oneBucket = true;
+            bounds[b + 1] += bounds[b];
+        }
+        if (oneBucket) return bounds; // every key has the same byte here, nothing to move
+
+        int[] next = Arrays.copyOf(bounds, 256);
+        for (int i = from; i < to; i++) {
+            int r = index[i];
+            tmp[next[(int) (keys[r] >>> shift & 0xFF)]++] = r;
+        }
+        System.arraycopy(tmp, from, index, from, to - from);
+        return bounds;
+    }
+
+    // top down merge sort over index[from, to), stable, no allocation
+    private void mergeSort(int from, int to) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int v = index[i];
+                int j = i - 1;
+                while (j >= from && compare(index[j], v) > 0) {
+                    index[j + 1] = index[j];
+                    j--;
+                }
+                index[j + 1] = v;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(from, mid);
+        mergeSort(mid, to);
+        merge(from, mid, to);
+    }
+
+    // merges the sorted halves index[from, mid) and index[mid, to)
+    private void merge(int from, int mid, int to) {
+        if (compare(index[mid - 1], index[mid]) <= 0) return; // already in order
+
+        System.arraycopy(index, from, tmp, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            index[k++] = (compare(tmp[j], tmp[i]) < 0) ? tmp[j++] : tmp[i++];
+        }
+        while (i < mid) index[k++] = tmp[i++];
+        while (j < to) index[k++] = tmp[j++];
+    }
+}
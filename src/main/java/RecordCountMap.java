@@ -0,0 +1,91 @@
+import java.util.Arrays;
+
+/** Open addressing hash map from normalized record bytes to a multiplicity, keys packed in a RecordArena */
+public class RecordCountMap {
+    private static final int W = Record.TOTAL_WIDTH;
+    private static final int EMPTY = -1;
+
+    private final RecordArena keys;
+    private final int[] counts;
+    private final int[] table; // record number per bucket, EMPTY if free; kept at most half full
+    private final int mask;
+    private final int capacity;
+
+    public RecordCountMap(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.keys = new RecordArena(this.capacity);
+        this.counts = new int[this.capacity];
+        int buckets = Integer.highestOneBit(Math.max(2, this.capacity * 2 - 1)) << 1;
+        this.table = new int[buckets];
+        this.mask = buckets - 1;
+        Arrays.fill(table, EMPTY);
+    }
+
+    // arena record + count + up to 4 buckets per key (load factor <= 0.5, power of two rounding)
+    public static long bytesPerKey() {
+        return RecordArena.bytesPerRecord() + Integer.BYTES + 4L * Integer.BYTES;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    // adds count to the record at src[off]; false if the key is new and the map is full
+    public boolean add(byte[] src, int off, int count) {
+        byte[] data = keys.data();
+        int b = hash(src, off, 0) & mask;
+        while (true) {
+            int rec = table[b];
+            if (rec == EMPTY) {
+                if (keys.isFull()) return false;
+                rec = keys.add(src, off);
+                counts[rec] = count;
+                table[b] = rec;
+                return true;
+            }
+            if (Arrays.equals(data, rec * W, rec * W + W, src, off, off + W)) {
+                counts[rec] = Math.addExact(counts[rec], count);
+                return true;
+            }
+            b = (b + 1) & mask;
+        }
+    }
+
+    public void clear() {
+        keys.clear();
+        Arrays.fill(table, EMPTY);
+    }
+
+    // sorts the keys; afterwards sortedAt/data/count walk them in record order
+    public void sortKeys() {
+        keys.sort();
+    }
+
+    public int sortedAt(int i) {
+        return keys.sortedAt(i);
+    }
+
+    public byte[] data() {
+        return keys.data();
+    }
+
+    public int count(int rec) {
+        return counts[rec];
+    }
+
+    // 64 bit mix over the record bytes, seed picks an independent function for each partitioning level
+    public static int hash(byte[] b, int off, int seed) {
+        long h = 0x9E3779B97F4A7C15L * (seed + 1);
+        for (int i = off; i < off + W; i++) {
+            h = (h ^ (b[i] & 0xFF)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
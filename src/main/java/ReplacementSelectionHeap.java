@@ -0,0 +1,92 @@
+/** Min heap of arena slots ordered by (run number, record bytes), used by replacement selection */
+public class ReplacementSelectionHeap {
+    private static final int W = Record.TOTAL_WIDTH;
+
+    private final byte[] data;
+    private final int[] heap; // slot numbers
+    private final int[] runOf; // run number per slot
+    private final long[] keyOf; // prefix key per slot
+    private int size;
+
+    public ReplacementSelectionHeap(int capacity) {
+        this.data = new byte[capacity * W];
+        this.heap = new int[capacity];
+        this.runOf = new int[capacity];
+        this.keyOf = new long[capacity];
+    }
+
+    public static long bytesPerRecord() {
+        return W + Long.BYTES + 2L * Integer.BYTES;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    public int capacity() {
+        return heap.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int topSlot() {
+        return heap[0];
+    }
+
+    public int topRun() {
+        return runOf[heap[0]];
+    }
+
+    // slot bytes must already be in data()
+    public void push(int slot, int run) {
+        runOf[slot] = run;
+        keyOf[slot] = Record.prefixKey(data, slot * W);
+        int i = size++;
+        heap[i] = slot;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (less(heap[parent], heap[i])) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    // the top slot was overwritten with a new record for the given run
+    public void replaceTop(int run) {
+        runOf[heap[0]] = run;
+        keyOf[heap[0]] = Record.prefixKey(data, heap[0] * W);
+        siftDown(0);
+    }
+
+    public int pop() {
+        int slot = heap[0];
+        heap[0] = heap[--size];
+        if (size > 0) siftDown(0);
+        return slot;
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int l = 2 * i + 1;
+            if (l >= size) return;
+            int r = l + 1;
+            int m = (r < size && less(heap[r], heap[l])) ? r : l;
+            if (less(heap[i], heap[m])) return;
+            swap(i, m);
+            i = m;
+        }
+    }
+
+    private boolean less(int a, int b) {
+        if (runOf[a] != runOf[b]) return runOf[a] < runOf[b];
+        return Record.compareBytes(keyOf[a], data, a * W, keyOf[b], data, b * W) < 0;
+    }
+
+    private void swap(int i, int j) {
+        int t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block codec for compressed run files. A compressed run starts with a 5 byte header (magic, codec) and then holds
+ * frames of up to FRAME_RECORDS sorted slots, each as [payload bytes][records][payload], so merges still stream
+ * frame by frame. PREFIX front codes every record against the previous one in the frame and drops its trailing
+ * spaces; DEFLATE additionally runs the front coded frame through a fast Deflater.
+ */
+public final class RunCodec implements AutoCloseable {
+    // the first byte is not ASCII, so a plain run (which starts with a record) never looks compressed
+    private static final int MAGIC = 0xC0525A00;
+    public static final int HEADER_BYTES = 5;
+    public static final int FRAME_HEADER_BYTES = 8;
+    // one logical block per frame keeps the decode buffers of a wide merge small
+    public static final int FRAME_RECORDS = 40;
+    // heap a compressed stream holds besides its I/O buffers: raw frame, coded frame and scratch arrays
+    public static final int WORKING_BYTES = 3 * FRAME_RECORDS * (Record.TOTAL_WIDTH + 2 + 5);
+    private static final int W = Record.TOTAL_WIDTH;
+
+    public enum Kind { NONE, PREFIX, DEFLATE }
+
+    private final Kind kind;
+    private final boolean counted;
+    private final int slot;
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] coded = new byte[0];
+    private byte[] scratch = new byte[0];
+
+    public RunCodec(Kind kind, boolean counted) {
+        if (kind == Kind.NONE) throw new IllegalArgumentException("NONE has no codec");
+        this.kind = kind;
+        this.counted = counted;
+        this.slot = RunReader.slotWidth(counted);
+    }
+
+    public static byte[] header(Kind kind) {
+        return ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).put((byte) kind.ordinal()).array();
+    }
+
+    // codec of a run file from its header, NONE for a plain slot file
+    public static Kind detect(FileChannel ch) throws IOException {
+        if (ch.size() < HEADER_BYTES) return Kind.NONE;
+        ByteBuffer b = BlockIO.readFully(ch, ByteBuffer.allocate(HEADER_BYTES), 0);
+        if (b.getInt() != MAGIC) return Kind.NONE;
+        int k = b.get();
+        if (k <= 0 || k >= Kind.values().length) throw new IOException("Unknown run codec " + k);
+        return Kind.values()[k];
+    }
+
+    // worst case payload for a frame: every record unshared plus its count as a varint
+    private static int maxPrefixBytes(int records) {
+        return records * (2 + W + 5);
+    }
+
+    // encodes `records` slots; the payload is then in coded()[0, returned length)
+    public int encode(byte[] slots, int records) {
+        int max = maxPrefixBytes(records);
+        if (kind == Kind.PREFIX) {
+            if (coded.length < max) coded = new byte[max];
+            return prefixEncode(slots, records, coded);
+        }
+        if (scratch.length < max) scratch = new byte[max];
+        int len = prefixEncode(slots, records, scratch);
+        if (deflater == null) deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.reset();
+        deflater.setInput(scratch, 0, len);
+        deflater.finish();
+        int n = 0;
+        if (coded.length < len + 64) coded = new byte[len + 64];
+        while (!deflater.finished()) {
+            if (n == coded.length) coded = Arrays.copyOf(coded, coded.length * 2);
+            n += deflater.deflate(coded, n, coded.length - n);
+        }
+        return n;
+    }
+
+    public byte[] coded() {
+        return coded;
+    }
+
+    // decodes a frame payload back into records * slot bytes of slots
+    public void decode(byte[] payload, int len, int records, byte[] slots) throws IOException {
+        if (kind == Kind.PREFIX) {
+            prefixDecode(payload, len, records, slots);
+            return;
+        }
+        int max = maxPrefixBytes(records);
+        if (scratch.length < max) scratch = new byte[max];
+        if (inflater == null) inflater = new Inflater(true);
+        inflater.reset();
+        inflater.setInput(payload, 0, len);
+        int n = 0;
+        try {
+            while (!inflater.finished() && n < max) {
+                int got = inflater.inflate(scratch, n, max - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += got;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed run frame", e);
+        }
+        prefixDecode(scratch, n, records, slots);
+    }
+
+    // per record: [shared prefix with the previous record][trailing spaces][the bytes in between][count varint]
+    private int prefixEncode(byte[] slots, int records, byte[] out) {
+        int o = 0;
+        for (int r = 0; r < records; r++) {
+            int at = r * slot;
+            int shared = 0;
+            if (r > 0) {
+                int prev = at - slot;
+                int mismatch = Arrays.mismatch(slots, prev, prev + W, slots, at, at + W);
+                shared = mismatch < 0 ? W : mismatch;
+            }
+            int end = W;
+            while (end > shared && slots[at + end - 1] == ' ') end--;
+            out[o++] = (byte) shared;
+            out[o++] = (byte) (W - end);
+            System.arraycopy(slots, at + shared, out, o, end - shared);
+            o += end - shared;
+            if (counted) {
+                int c = getInt(slots, at + W);
+                while ((c & ~0x7F) != 0) {
+                    out[o++] = (byte) ((c & 0x7F) | 0x80);
+                    c >>>= 7;
+                }
+                out[o++] = (byte) c;
+            }
+        }
+        return o;
+    }
+
+    private void prefixDecode(byte[] in, int len, int records, byte[] slots) throws IOException {
+        int i = 0;
+        for (int r = 0; r < records; r++) {
+            int at = r * slot;
+            if (i + 2 > len) throw new IOException("Truncated compressed run frame");
+            int shared = in[i++] & 0xFF;
+            int spaces = in[i++] & 0xFF;
+            int mid = W - shared - spaces;
+            if (mid < 0 || (shared > 0 && r == 0) || i + mid > len) {
+                throw new IOException("Corrupt compressed run frame");
+            }
+            if (shared > 0) System.arraycopy(slots, at - slot, slots, at, shared);
+            System.arraycopy(in, i, slots, at + shared, mid);
+            i += mid;
+            Arrays.fill(slots, at + W - spaces, at + W, (byte) ' ');
+            if (counted) {
+                int c = 0;
+                for (int shift = 0; ; shift += 7) {
+                    if (i >= len || shift > 28) throw new IOException("Corrupt compressed run frame");
+                    int b = in[i++];
+                    c |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) break;
+                }
+                putInt(slots, at + W, c);
+            }
+        }
+    }
+
+    static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    // releases the native zlib state
+    @Override
+    public void close() {
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+    }
+}
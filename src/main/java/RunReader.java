@@ -0,0 +1,243 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Cursor over one sorted binary run (fixed Record.TOTAL_WIDTH byte slots, no separators), holds the current
+ * record for the merge heap. Counted runs (aggregating mode) follow every record with its multiplicity as a
+ * 4 byte int. With depth > 1 the next buffers are prefetched by BlockIO threads while this one is consumed.
+ * Compressed runs (see RunCodec) are recognized by their header and decoded one frame at a time.
+ */
+public class RunReader implements Closeable {
+    public static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+    private static final int W = Record.TOTAL_WIDTH;
+    public static final int COUNT_BYTES = Integer.BYTES;
+
+    private final FileChannel ch;
+    private final int slot;
+    private final boolean counted;
+    private final IOTracker io;
+    private final int depth;
+    private final long endPos;
+    // compressed runs only: the codec, the frame being read and its decoded slots
+    private final RunCodec codec;
+    private final byte[] frameHeader = new byte[RunCodec.FRAME_HEADER_BYTES];
+    private byte[] frame = new byte[0];
+    private byte[] decodedSlots = new byte[0];
+    private ByteBuffer decoded = ByteBuffer.allocate(0);
+    private long nextReadPos;
+    // buffers being filled, in file order
+    private final ArrayDeque<Future<ByteBuffer>> inFlight = new ArrayDeque<>();
+    private ByteBuffer buf;
+    // two slots so the record handed out by next() stays valid until the following next()
+    private byte[] current = new byte[W];
+    private byte[] spare = new byte[W];
+    private int currentCount;
+    private long currentKey;
+    private boolean hasCurrent;
+    private long remainingSlots;
+
+    public RunReader(File run, IOTracker io, int bufferBytes, boolean counted) throws IOException {
+        this(run, io, bufferBytes, counted, 0, Long.MAX_VALUE, BlockIO.defaultDepth());
+    }
+
+    // reads only the slots [fromSlot, toSlot) of a plain run, for key range split merges
+    public RunReader(File run, IOTracker io, int bufferBytes, long fromSlot, long toSlot) throws IOException {
+        this(run, io, bufferBytes, false, fromSlot, toSlot, BlockIO.defaultDepth());
+    }
+
+    public RunReader(File run, IOTracker io, int bufferBytes, boolean counted,
+                     long fromSlot, long toSlot, int depth) throws IOException {
+        this.ch = FileChannel.open(run.toPath(), StandardOpenOption.READ);
+        this.counted = counted;
+        this.slot = slotWidth(counted);
+        this.io = io;
+        this.depth = Math.max(1, depth);
+        try {
+            RunCodec.Kind kind = RunCodec.detect(ch);
+            if (kind == RunCodec.Kind.NONE) {
+                this.codec = null;
+                this.remainingSlots = toSlot - fromSlot;
+                this.endPos = Math.min(ch.size(), (toSlot >= Long.MAX_VALUE / slot) ? Long.MAX_VALUE : toSlot * slot);
+                this.nextReadPos = fromSlot * slot;
+            } else {
+                if (fromSlot != 0 || toSlot != Long.MAX_VALUE) {
+                    throw new IOException("Compressed run cannot be read by slot range: " + run);
+                }
+                this.codec = new RunCodec(kind, counted);
+                this.remainingSlots = Long.MAX_VALUE;
+                this.endPos = ch.size();
+                this.nextReadPos = RunCodec.HEADER_BYTES;
+            }
+            int capacity = Math.max(1, bufferBytes / slot) * slot;
+            for (int i = 0; i < this.depth && nextReadPos < endPos; i++) {
+                schedule(ByteBuffer.allocateDirect(capacity));
+            }
+            this.buf = inFlight.isEmpty() ? ByteBuffer.allocate(0) : take();
+            advance();
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    public byte[] peek() {
+        return hasCurrent ? current : null;
+    }
+
+    // prefix key of the current record, see Record.prefixKey
+    public long peekKey() {
+        return currentKey;
+    }
+
+    // multiplicity of the current record, always 1 for plain runs
+    public int count() {
+        return currentCount;
+    }
+
+    public static int slotWidth(boolean counted) {
+        return counted ? W + COUNT_BYTES : W;
+    }
+
+    // returns the current record and moves to the next one (null at end of run)
+    public byte[] next() throws IOException {
+        if (!hasCurrent) return null;
+        byte[] r = current;
+        current = spare;
+        spare = r;
+        advance();
+        return r;
+    }
+
+    private void advance() throws IOException {
+        ByteBuffer src = (remainingSlots > 0) ? nextSlot() : null;
+        if (src == null) {
+            hasCurrent = false;
+            return;
+        }
+        src.get(current, 0, W);
+        currentKey = Record.prefixKey(current, 0);
+        currentCount = counted ? src.getInt() : 1;
+        remainingSlots--;
+        hasCurrent = true;
+        io.noteReadLine();
+    }
+
+    // a buffer positioned at the next slot, null at the end of the run
+    private ByteBuffer nextSlot() throws IOException {
+        if (codec != null) {
+            return (decoded.hasRemaining() || decodeFrame()) ? decoded : null;
+        }
+        if (!buf.hasRemaining()) {
+            // hand the drained buffer back for the next block, then switch to the oldest prefetched one
+            schedule(buf);
+            if (!inFlight.isEmpty()) buf = take();
+        }
+        if (buf.remaining() < slot) {
+            if (buf.hasRemaining()) {
+                throw new IOException("Truncated run file: " + buf.remaining() + " trailing bytes");
+            }
+            return null;
+        }
+        return buf;
+    }
+
+    // reads the next [payload bytes][records][payload] frame, which may span I/O buffers, and decodes it
+    private boolean decodeFrame() throws IOException {
+        int n = readRaw(frameHeader, RunCodec.FRAME_HEADER_BYTES);
+        if (n == 0) return false;
+        int payload = RunCodec.getInt(frameHeader, 0);
+        int records = RunCodec.getInt(frameHeader, 4);
+        if (n < RunCodec.FRAME_HEADER_BYTES || payload < 0 || records <= 0 || records > RunCodec.FRAME_RECORDS) {
+            throw new IOException("Corrupt compressed run frame header");
+        }
+        if (frame.length < payload) frame = new byte[payload];
+        if (readRaw(frame, payload) < payload) {
+            throw new IOException("Truncated compressed run frame");
+        }
+        int bytes = records * slot;
+        if (decodedSlots.length < bytes) decodedSlots = new byte[RunCodec.FRAME_RECORDS * slot];
+        codec.decode(frame, payload, records, decodedSlots);
+        decoded = ByteBuffer.wrap(decodedSlots, 0, bytes);
+        return true;
+    }
+
+    // copies up to len bytes of the file stream into dst, fewer only at the end of the file
+    private int readRaw(byte[] dst, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            if (!buf.hasRemaining()) {
+                schedule(buf);
+                if (inFlight.isEmpty()) break;
+                buf = take();
+                if (!buf.hasRemaining()) break;
+            }
+            int n = Math.min(len - done, buf.remaining());
+            buf.get(dst, done, n);
+            done += n;
+        }
+        return done;
+    }
+
+    private void schedule(ByteBuffer b) throws IOException {
+        if (nextReadPos >= endPos) return;
+        long at = nextReadPos;
+        b.clear();
+        b.limit((int) Math.min(b.capacity(), endPos - at));
+        nextReadPos += b.limit();
+        if (depth == 1) {
+            long start = System.nanoTime();
+            inFlight.add(CompletableFuture.completedFuture(BlockIO.readFully(ch, b, at)));
+            io.noteIoWait(System.nanoTime() - start);
+        } else {
+            inFlight.add(BlockIO.submit(() -> BlockIO.readFully(ch, b, at)));
+        }
+    }
+
+    // the oldest buffer in flight, time spent waiting for it counts as I/O wait
+    private ByteBuffer take() throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer b = BlockIO.await(inFlight.poll());
+        io.noteIoWait(System.nanoTime() - start);
+        io.noteBytesRead(b.remaining());
+        return b;
+    }
+
+    public static long slotCount(File run) {
+        return run.length() / W;
+    }
+
+    // positional read of one slot of a plain run, does not count as a merge read
+    public static void readSlot(FileChannel ch, long slot, byte[] dst) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(dst, 0, W);
+        long pos = slot * W;
+        while (b.hasRemaining()) {
+            int n = ch.read(b, pos + b.position());
+            if (n < 0) throw new EOFException("Slot " + slot + " past end of run");
+        }
+    }
+
+    // index of the first slot >= key, by binary search over the fixed width slots
+    public static long lowerBound(FileChannel ch, long slots, byte[] key) throws IOException {
+        byte[] probe = new byte[W];
+        long lo = 0, hi = slots;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            readSlot(ch, mid, probe);
+            if (Record.compareBytes(probe, key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<ByteBuffer> f : inFlight) f.cancel(false);
+        if (codec != null) codec.close();
+        ch.close();
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Writes fixed width record slots (Record.TOTAL_WIDTH bytes) to a binary run file through a write-behind block buffer.
+ * A counted writer (aggregating mode) collapses equal adjacent records into one slot followed by their multiplicity.
+ * With a codec the slots are collected into frames of RunCodec.FRAME_RECORDS and written compressed.
+ */
+public class RunWriter implements Closeable {
+    private static final int W = Record.TOTAL_WIDTH;
+
+    private final BlockWriter out;
+    private final IOTracker io;
+    private final boolean counted;
+    // counted mode: the record still collecting duplicates, and how many so far
+    private final byte[] pending;
+    private int pendingCount;
+    private final byte[] countBytes = new byte[RunReader.COUNT_BYTES];
+    // compressed runs only: slots of the frame being collected
+    private final RunCodec codec;
+    private final byte[] frame;
+    private int frameRecords;
+
+    public RunWriter(File run, IOTracker io, int bufferBytes, boolean counted) throws IOException {
+        this(run, io, bufferBytes, counted, RunCodec.Kind.NONE);
+    }
+
+    public RunWriter(File run, IOTracker io, int bufferBytes, boolean counted,
+                     RunCodec.Kind compression) throws IOException {
+        this.out = new BlockWriter(run, slotAligned(bufferBytes, counted), BlockIO.defaultDepth(), 0, true, io);
+        this.io = io;
+        this.counted = counted;
+        this.pending = counted ? new byte[W] : null;
+        if (compression == RunCodec.Kind.NONE) {
+            this.codec = null;
+            this.frame = null;
+        } else {
+            this.codec = new RunCodec(compression, counted);
+            this.frame = new byte[RunCodec.FRAME_RECORDS * RunReader.slotWidth(counted)];
+            out.write(RunCodec.header(compression));
+        }
+    }
+
+    // writes a plain run into an existing file starting at the given slot, several writers can fill disjoint slices
+    public RunWriter(File run, IOTracker io, int bufferBytes, long startSlot) throws IOException {
+        this.out = new BlockWriter(run, slotAligned(bufferBytes, false), BlockIO.defaultDepth(), startSlot * W, false,
+                io);
+        this.io = io;
+        this.counted = false;
+        this.pending = null;
+        this.codec = null;
+        this.frame = null;
+    }
+
+    public boolean isCounted() {
+        return counted;
+    }
+
+    public void write(byte[] record) throws IOException {
+        write(record, 0);
+    }
+
+    public void write(byte[] src, int offset) throws IOException {
+        write(src, offset, 1);
+    }
+
+    // count > 1 is only meaningful for counted runs
+    public void write(byte[] src, int offset, int count) throws IOException {
+        if (!counted) {
+            for (int i = 0; i < count; i++) {
+                writeSlot(src, offset, 1);
+            }
+            return;
+        }
+        if (pendingCount > 0 && Arrays.equals(pending, 0, W, src, offset, offset + W)) {
+            pendingCount = Math.addExact(pendingCount, count);
+            return;
+        }
+        flushPending();
+        System.arraycopy(src, offset, pending, 0, W);
+        pendingCount = count;
+    }
+
+    private void flushPending() throws IOException {
+        if (pendingCount == 0) return;
+        writeSlot(pending, 0, pendingCount);
+        pendingCount = 0;
+    }
+
+    // one slot, the count is only stored by counted runs
+    private void writeSlot(byte[] src, int offset, int count) throws IOException {
+        if (codec != null) {
+            int at = frameRecords * RunReader.slotWidth(counted);
+            System.arraycopy(src, offset, frame, at, W);
+            if (counted) RunCodec.putInt(frame, at + W, count);
+            if (++frameRecords == RunCodec.FRAME_RECORDS) flushFrame();
+        } else {
+            out.write(src, offset, W);
+            if (counted) {
+                RunCodec.putInt(countBytes, 0, count);
+                out.write(countBytes, 0, countBytes.length);
+            }
+        }
+        io.noteWriteLine();
+    }
+
+    private void flushFrame() throws IOException {
+        if (frameRecords == 0) return;
+        int len = codec.encode(frame, frameRecords);
+        RunCodec.putInt(countBytes, 0, len);
+        out.write(countBytes, 0, countBytes.length);
+        RunCodec.putInt(countBytes, 0, frameRecords);
+        out.write(countBytes, 0, countBytes.length);
+        out.write(codec.coded(), 0, len);
+        frameRecords = 0;
+    }
+
+    private static int slotAligned(int bufferBytes, boolean counted) {
+        int slot = RunReader.slotWidth(counted);
+        return Math.max(1, bufferBytes / slot) * slot;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushPending();
+            if (codec != null) flushFrame();
+        } finally {
+            if (codec != null) codec.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Operator a final merge applies to the sorted T1 and T2 streams: it turns the multiplicities a key has in T1 and in
+ * T2 (0 where it is absent) into its multiplicity in the output, and a key mapped to 0 is left out.
+ */
+public interface SetOperator {
+
+    int combine(int t1, int t2);
+
+    // whether a key found only in T1 can be output; if not, the merge ends as soon as T2 is drained
+    default boolean keepsT1Only() {
+        return true;
+    }
+
+    // whether a key found only in T2 can be output; if not, the merge ends as soon as T1 is drained
+    default boolean keepsT2Only() {
+        return true;
+    }
+
+    /** Bag operations Main selects with --op=... (or the tpmms.op property) */
+    enum Bag implements SetOperator {
+        // sum of the counts
+        UNION {
+            @Override
+            public int combine(int t1, int t2) {
+                return Math.addExact(t1, t2);
+            }
+        },
+        // min of the counts
+        INTERSECTION {
+            @Override
+            public int combine(int t1, int t2) {
+                return Math.min(t1, t2);
+            }
+
+            @Override
+            public boolean keepsT1Only() {
+                return false;
+            }
+
+            @Override
+            public boolean keepsT2Only() {
+                return false;
+            }
+        },
+        // T1 minus T2, a key with more copies in T2 drops out
+        DIFFERENCE {
+            @Override
+            public int combine(int t1, int t2) {
+                return Math.max(0, t1 - t2);
+            }
+
+            @Override
+            public boolean keepsT2Only() {
+                return false;
+            }
+        },
+        // every key in either input once
+        DISTINCT {
+            @Override
+            public int combine(int t1, int t2) {
+                return (t1 > 0 || t2 > 0) ? 1 : 0;
+            }
+        }
+    }
+}
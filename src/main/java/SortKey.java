@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Fields a sort orders and groups records on. The whole record is the default; any other key projects each record
+ * onto its key fields as it is parsed, moving them to the front of the slot in key order and blanking the rest. Runs,
+ * merges and counting then work unchanged and every output line is one distinct key with its multiplicity.
+ */
+public final class SortKey {
+    private static final int W = Record.TOTAL_WIDTH;
+    public static final SortKey RECORD = new SortKey(List.of(Record.Field.values()));
+
+    private final List<Record.Field> fields;
+    private final int width;
+    private final boolean record;
+
+    public SortKey(List<Record.Field> fields) {
+        if (fields.isEmpty()) throw new IllegalArgumentException("Sort key has no fields");
+        if (EnumSet.copyOf(fields).size() != fields.size()) {
+            throw new IllegalArgumentException("Sort key repeats a field: " + fields);
+        }
+        this.fields = List.copyOf(fields);
+        this.width = fields.stream().mapToInt(f -> f.width).sum();
+        this.record = this.fields.equals(List.of(Record.Field.values()));
+    }
+
+    // comma separated field names, e.g. "ID" or "DEPARTMENT,PROGRAM"; "RECORD" for the whole record
+    public static SortKey parse(String list) {
+        if (list.trim().equalsIgnoreCase("RECORD")) return RECORD;
+        List<Record.Field> fields = new ArrayList<>();
+        for (String f : list.split(",")) {
+            if (!f.trim().isEmpty()) fields.add(Record.Field.valueOf(f.trim().toUpperCase()));
+        }
+        return new SortKey(fields);
+    }
+
+    // the key is the whole record, projection is a no-op
+    public boolean isRecord() {
+        return record;
+    }
+
+    // bytes of a projected slot that hold the key, the rest are spaces
+    public int width() {
+        return width;
+    }
+
+    // rewrites the normalized record at b[off, off + W) as its key; scratch holds at least W bytes
+    public void project(byte[] b, int off, byte[] scratch) {
+        if (record) return;
+        System.arraycopy(b, off, scratch, 0, W);
+        int p = off;
+        for (Record.Field f : fields) {
+            System.arraycopy(scratch, f.offset, b, p, f.width);
+            p += f.width;
+        }
+        Arrays.fill(b, p, off + W, (byte) ' ');
+    }
+
+    @Override
+    public String toString() {
+        return record ? "RECORD" : fields.stream().map(Enum::name).collect(Collectors.joining(","));
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sparse block index over the sorted record:count union output. One fixed size entry per block of 40 output lines
+ * holds the block's byte offset, its first record and its min and max student ID as fence pointers. Lookups binary
+ * search the entries straight from the mapped index file and then read only the output blocks that can hold the
+ * answer: one block for a record's count, the blocks of the matching IDs for an ID or ID range.
+ */
+public class SparseIndex implements Closeable {
+    public static final int BLOCK_TUPLES = 40;
+    private static final int MAGIC = 0x53504958;
+    private static final int W = Record.TOTAL_WIDTH;
+    private static final int ID = Record.ID_WIDTH;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8; // magic, lines per block, blocks, output length
+    private static final int ENTRY_BYTES = 8 + 4 + W + ID + ID; // offset, lines, first record, min ID, max ID
+
+    private final FileChannel output;
+    private final MappedByteBuffer index;
+    private final long blocks;
+    private final long outputLength;
+
+    private SparseIndex(FileChannel output, MappedByteBuffer index, long blocks, long outputLength) {
+        this.output = output;
+        this.index = index;
+        this.blocks = blocks;
+        this.outputLength = outputLength;
+    }
+
+    // index file kept next to an output
+    public static File indexFor(File output) {
+        return new File(output.getPath() + ".idx");
+    }
+
+    public static SparseIndex open(File output) throws IOException {
+        File idx = indexFor(output);
+        MappedByteBuffer map;
+        try (FileChannel ch = FileChannel.open(idx.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() < HEADER_BYTES || ch.size() > Integer.MAX_VALUE) throw new IOException("Bad index " + idx);
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        if (map.getInt(0) != MAGIC || map.getInt(4) != BLOCK_TUPLES) throw new IOException("Bad index " + idx);
+        long blocks = map.getLong(8);
+        long length = map.getLong(16);
+        if (HEADER_BYTES + blocks * ENTRY_BYTES != map.capacity() || length != output.length()) {
+            throw new IOException("Index " + idx + " does not match " + output);
+        }
+        return new SparseIndex(FileChannel.open(output.toPath(), StandardOpenOption.READ), map, blocks, length);
+    }
+
+    public long blocks() {
+        return blocks;
+    }
+
+    // multiplicity of a record in the union, 0 if absent; the record is normalized like an input line
+    public int count(String record) throws IOException {
+        byte[] key = new byte[W];
+        Record.normalize(record, key, 0);
+        // last block whose first record is <= key
+        byte[] first = new byte[W];
+        long lo = 0, hi = blocks - 1, block = -1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            index.get(entry(mid) + 12, first, 0, W);
+            if (Record.compareBytes(first, key) <= 0) {
+                block = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (block < 0) return 0;
+        ByteBuffer b = readBlock(block);
+        byte[] rec = new byte[W];
+        while (b.hasRemaining()) {
+            int count = nextLine(b, rec);
+            if (Record.compareBytes(rec, key) == 0) return count;
+        }
+        return 0;
+    }
+
+    // every record:count line for one student ID
+    public List<String> byStudentId(String id) throws IOException {
+        return range(id, id);
+    }
+
+    // record:count lines whose student ID lies in [fromId, toId], in sorted order
+    public List<String> range(String fromId, String toId) throws IOException {
+        byte[] from = Record.normalizeStudentId(fromId).getBytes(StandardCharsets.US_ASCII);
+        byte[] to = Record.normalizeStudentId(toId).getBytes(StandardCharsets.US_ASCII);
+        List<String> out = new ArrayList<>();
+        if (Arrays.compareUnsigned(from, to) > 0) return out;
+
+        // first block whose max ID reaches fromId
+        byte[] id = new byte[ID];
+        long lo = 0, hi = blocks;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            index.get(entry(mid) + 12 + W + ID, id, 0, ID);
+            if (Arrays.compareUnsigned(id, from) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+
+        byte[] rec = new byte[W];
+        for (long block = lo; block < blocks; block++) {
+            index.get(entry(block) + 12 + W, id, 0, ID);
+            if (Arrays.compareUnsigned(id, to) > 0) break;
+            ByteBuffer b = readBlock(block);
+            while (b.hasRemaining()) {
+                int count = nextLine(b, rec);
+                if (Arrays.compareUnsigned(rec, 0, ID, from, 0, ID) >= 0
+                        && Arrays.compareUnsigned(rec, 0, ID, to, 0, ID) <= 0) {
+                    out.add(new String(rec, StandardCharsets.US_ASCII) + ":" + count);
+                }
+            }
+        }
+        return out;
+    }
+
+    private int entry(long block) {
+        return (int) (HEADER_BYTES + block * ENTRY_BYTES);
+    }
+
+    private ByteBuffer readBlock(long block) throws IOException {
+        long start = index.getLong(entry(block));
+        long end = (block + 1 < blocks) ? index.getLong(entry(block + 1)) : outputLength;
+        return BlockIO.readFully(output, ByteBuffer.allocate((int) (end - start)), start);
+    }
+
+    // reads one record:count line into rec and returns its count
+    private static int nextLine(ByteBuffer b, byte[] rec) throws IOException {
+        b.get(rec, 0, W);
+        if (b.get() != ':') throw new IOException("Malformed union output line");
+        int count = 0;
+        while (b.hasRemaining()) {
+            byte c = b.get();
+            if (c == '\n') break;
+            if (c >= '0' && c <= '9') count = count * 10 + (c - '0');
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+
+    /** Writes the index entries while the union output is being written */
+    public static final class Builder implements Closeable {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocate(ENTRY_BYTES * 512);
+        private final byte[] first = new byte[W];
+        private final byte[] maxId = new byte[ID];
+        private long blockStart;
+        private long pos;
+        private int lines;
+        private long blocks;
+
+        public Builder(File index) throws IOException {
+            this.ch = FileChannel.open(index.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        // one output line for the record at src[off], lineBytes long including its line separator
+        public void add(byte[] src, int off, int lineBytes) throws IOException {
+            if (lines == 0) {
+                blockStart = pos;
+                System.arraycopy(src, off, first, 0, W);
+            }
+            System.arraycopy(src, off, maxId, 0, ID);
+            pos += lineBytes;
+            if (++lines == BLOCK_TUPLES) addEntry();
+        }
+
+        private void addEntry() throws IOException {
+            if (buf.remaining() < ENTRY_BYTES) drain();
+            buf.putLong(blockStart).putInt(lines).put(first).put(first, 0, ID).put(maxId);
+            blocks++;
+            lines = 0;
+        }
+
+        private void drain() throws IOException {
+            buf.flip();
+            BlockIO.writeFully(ch, buf, HEADER_BYTES + blocks * ENTRY_BYTES - buf.remaining());
+        }
+
+        // the header goes last, with the entry count and the output length the index was built for
+        @Override
+        public void close() throws IOException {
+            try {
+                if (lines > 0) addEntry();
+                drain();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                        .putInt(MAGIC).putInt(BLOCK_TUPLES).putLong(blocks).putLong(pos);
+                header.flip();
+                BlockIO.writeFully(ch, header, 0);
+            } finally {
+                ch.close();
+            }
+        }
+    }
+}
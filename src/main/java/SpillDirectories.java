@@ -0,0 +1,88 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Directories runs are spread over, ideally one per local disk. Phase 1 runs and the outputs of each merge pass
+ * alternate between the even and the odd numbered directories, so a pass reads from one set of devices while it
+ * writes to the other. Within a set a run goes to the next directory in turn or to the one with the most free space.
+ */
+public class SpillDirectories {
+
+    /** How a run picks a directory within its set */
+    public enum Placement { ROUND_ROBIN, FREE_SPACE }
+
+    private final List<File> dirs;
+    private final List<List<File>> sets = new ArrayList<>();
+    private final Placement placement;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public SpillDirectories(List<File> dirs, Placement placement) throws IOException {
+        if (dirs.isEmpty()) throw new IllegalArgumentException("No spill directories");
+        for (File d : dirs) {
+            if (!d.isDirectory() && !d.mkdirs()) throw new IOException("Could not create spill directory " + d);
+        }
+        this.dirs = List.copyOf(dirs);
+        this.placement = placement;
+        for (int s = 0; s < Math.min(2, dirs.size()); s++) {
+            List<File> set = new ArrayList<>();
+            for (int i = s; i < dirs.size(); i += 2) set.add(dirs.get(i));
+            sets.add(set);
+        }
+    }
+
+    // comma separated directories, e.g. "/mnt/nvme0/tpmms,/mnt/nvme1/tpmms"
+    public static SpillDirectories parse(String list, Placement placement) throws IOException {
+        List<File> dirs = new ArrayList<>();
+        for (String d : list.split(",")) {
+            if (!d.trim().isEmpty()) dirs.add(new File(d.trim()));
+        }
+        return new SpillDirectories(dirs, placement);
+    }
+
+    public List<File> dirs() {
+        return dirs;
+    }
+
+    // a named run written by `pass`, 0 for Phase 1
+    public File newFile(String name, int pass) {
+        return new File(pick(pass), name);
+    }
+
+    // an anonymous merge output of `pass`
+    public File newTempFile(int pass) throws IOException {
+        return File.createTempFile("tpmms_", ".tmp", pick(pass));
+    }
+
+    private File pick(int pass) {
+        List<File> set = sets.get(pass % sets.size());
+        if (placement == Placement.FREE_SPACE) {
+            File best = set.get(0);
+            for (File d : set) {
+                if (d.getUsableSpace() > best.getUsableSpace()) best = d;
+            }
+            return best;
+        }
+        return set.get(Math.floorMod(next.getAndIncrement(), set.size()));
+    }
+
+    // deletes this job's runs from every directory, other files in them are left alone
+    public void clear() {
+        for (File d : dirs) {
+            File[] files = d.listFiles();
+            if (files == null) continue;
+            for (File f : files) {
+                if (f.isFile() && isRunFile(f.getName()) && !f.delete()) {
+                    System.err.println("Could not delete: " + f.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    // Phase 1 runs and merge outputs
+    public static boolean isRunFile(String name) {
+        return name.endsWith(".run") || (name.startsWith("tpmms_") && name.endsWith(".tmp"));
+    }
+}
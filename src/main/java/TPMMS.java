@@ -1,42 +1,303 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /** Two-Phase Multiway Merge Sort  */
 public class TPMMS {
     private static final int BLOCK_TUPLES = 40; // 4kb = 40 tuples
-    private final int maxRecordsInMem;
-    private final int K;//may be useful in lecture?
+    private static final int BLOCK_BYTES = BLOCK_TUPLES * Record.TOTAL_WIDTH;
+    private static final int MAX_OPEN_RUNS = 512; // keep below the usual per process file limit
+    private static final int MAX_IO_BUFFER = 1024 * 1024;
+    private static final int PHASE1_WRITE_BUFFER = RunReader.DEFAULT_BUFFER_BYTES;
+    private static final long MIN_SLOTS_PER_RANGE = 64L * BLOCK_TUPLES; // below this a split merge is not worth it
+    private final MemoryBudget budget;
     private final IOTracker io;
     // counts block I/Os
+    private RunGeneration runGeneration = RunGeneration.LOAD_SORT;
+    private int threads = 1;
+    private boolean aggregate = false;
+    private RunCodec.Kind compression = RunCodec.Kind.NONE;
+    private RecordArena.SortAlgorithm sortAlgorithm = RecordArena.SortAlgorithm.MERGE;
+    private SortKey sortKey = SortKey.RECORD;
+    private JobManifest manifest; // null: no checkpoints
+    private SpillDirectories spill; // null: runs next to the Phase 1 prefix, merge outputs in the JVM temp dir
+    private final Map<String, Long> recordEstimates = new ConcurrentHashMap<>(); // input path -> records
+
+    /** Phase 1 strategy */
+    public enum RunGeneration {
+        LOAD_SORT,             // fill memory, sort, write: runs are exactly one memory load
+        REPLACEMENT_SELECTION  // heap keeps emitting while reading: ~2x memory on random input
+    }
 
     public TPMMS(long memMB, IOTracker io) {
+        this(new MemoryBudget(Math.max(1, (long) (memMB * 1024L * 1024L * 0.6))), io); // 60% to be safe
+    }
+
+    // every sort and merge buffer is leased from the budget, run length and fan-in follow from what is free
+    public TPMMS(MemoryBudget budget, IOTracker io) {
+        this.budget = budget;
         this.io = io;
-        long memBytes = memMB * 1024L * 1024L;
-        long usable = (long) (memBytes * 0.6); // 60% to be safe
-        this.maxRecordsInMem = (int) Math.max(1, usable / Record.TOTAL_WIDTH);
-        this.K = Math.max(2, (maxRecordsInMem / BLOCK_TUPLES) - 1);
+        requireTwoWayMerge();
+    }
+
+    // compressed streams need more per run, so this is checked again when the codec changes
+    private void requireTwoWayMerge() {
+        long minimum = 3 * streamBytes(BLOCK_BYTES) + RecordArena.bytesPerRecord();
+        if (budget.totalBytes() < minimum) {
+            throw new IllegalArgumentException("Memory budget of " + budget.totalBytes()
+                    + " bytes is below the " + minimum + " bytes a 2-way merge needs");
+        }
+    }
+
+    // widest merge the free budget allows right now: one block of buffers per input run plus the output
+    public int getFanIn() {
+        return fanIn(budget.available());
+    }
+
+    private int fanIn(long bytes) {
+        long streams = bytes / streamBytes(BLOCK_BYTES);
+        return (int) Math.min(MAX_OPEN_RUNS, Math.max(2, streams - 1));
+    }
+
+    // bytes one open run stream allocates: its BlockIO buffers plus the codec's frame arrays
+    public long streamBytes(int bufferBytes) {
+        return (long) BlockIO.defaultDepth() * bufferBytes
+                + (compression == RunCodec.Kind.NONE ? 0 : RunCodec.WORKING_BYTES);
+    }
+
+    // per buffer size when the free budget is shared by `streams` open runs, at least one block
+    public int ioBufferBytes(int streams) {
+        return bufferBytes(budget.available(), streams);
+    }
+
+    private int bufferBytes(long bytes, int streams) {
+        long share = bytes / Math.max(1, streams) - (compression == RunCodec.Kind.NONE ? 0 : RunCodec.WORKING_BYTES);
+        long b = Math.max(BLOCK_BYTES, Math.min(MAX_IO_BUFFER, share / BlockIO.defaultDepth()));
+        return (int) (b / Record.TOTAL_WIDTH * Record.TOTAL_WIDTH);
+    }
+
+    public MemoryBudget getBudget() {
+        return budget;
+    }
+
+    public void setRunGeneration(RunGeneration runGeneration) {
+        this.runGeneration = runGeneration;
+    }
+
+    // aggregating mode: runs hold (record, multiplicity) slots and merges sum the counts of equal records
+    public void setAggregate(boolean aggregate) {
+        this.aggregate = aggregate;
+    }
+
+    public boolean isAggregate() {
+        return aggregate;
+    }
+
+    // checkpoint Phase 1 and every merge pass in the job manifest, whose spill directories must be the ones set
+    // here; a relation the manifest already has runs for resumes from them
+    public void setManifest(JobManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    public void setSpillDirectories(SpillDirectories spill) {
+        this.spill = spill;
     }
+
+    // in-memory sort of a Phase 1 load (replacement selection keeps its heap)
+    public void setSortAlgorithm(RecordArena.SortAlgorithm sortAlgorithm) {
+        this.sortAlgorithm = sortAlgorithm;
+    }
+
+    // fields runs are sorted and grouped on; Phase 1 projects every record onto them
+    public void setSortKey(SortKey sortKey) {
+        this.sortKey = sortKey;
+    }
+
+    public SortKey getSortKey() {
+        return sortKey;
+    }
+
+    // records a pre-flight scan counted in an input; Phase 1 then sizes its sort buffer no larger than the input
+    public void setRecordEstimate(String filePath, long records) {
+        recordEstimates.put(filePath, records);
+    }
+
+    // block codec for Phase 1 runs and merge outputs; readers recognize compressed runs on their own
+    public void setCompression(RunCodec.Kind compression) {
+        this.compression = compression;
+        requireTwoWayMerge();
+    }
+
+    // threads for Phase 1 sorting and Phase 2 merging; more than 1 turns on the pipelined run generator,
+    // concurrent merge groups and key range split merges
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
     public List<File> createInitialRuns(String filePath, String prefix) throws IOException {
+        return createInitialRuns(filePath, prefix, budget.available(), threads);
+    }
+
+    // Phase 1 for several relations at the same time, the memory budget and threads are split between them. Only
+    // when each relation fits its share in one load: otherwise the split would cut every run to a fraction of the
+    // sort buffer, so they are sorted one after another on the whole budget
+    public List<List<File>> createInitialRuns(List<String> filePaths, List<String> prefixes) throws IOException {
+        int n = filePaths.size();
+        long bytesEach = budget.available() / n;
+        int threadsEach = Math.max(1, threads / n);
+        boolean allFit = true;
+        for (String path : filePaths) allFit &= fitsOneLoad(path, bytesEach, threadsEach);
+        if (!allFit) {
+            List<List<File>> runs = new ArrayList<>();
+            for (int i = 0; i < n; i++) runs.add(createInitialRuns(filePaths.get(i), prefixes.get(i)));
+            return runs;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<List<File>>> futures = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                String path = filePaths.get(i);
+                String prefix = prefixes.get(i);
+                futures.add(pool.submit(() -> createInitialRuns(path, prefix, bytesEach, threadsEach)));
+            }
+            return awaitAll(futures);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static <T> List<T> awaitAll(List<Future<T>> futures) throws IOException {
+        List<T> result = new ArrayList<>();
+        for (Future<T> f : futures) {
+            try {
+                result.add(f.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new IOException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for worker threads");
+            }
+        }
+        return result;
+    }
+
+    // whether Phase 1 on `bytes` of the budget makes a single run of the input, counted by a pre-flight scan or
+    // estimated from its length
+    private boolean fitsOneLoad(String filePath, long bytes, int threads) {
+        Long records = recordEstimates.get(filePath);
+        long expected = (records != null) ? records : new File(filePath).length() / (Record.TOTAL_WIDTH + 1);
+        boolean pipelined = threads > 1 && runGeneration == RunGeneration.LOAD_SORT;
+        long perRecord = (runGeneration == RunGeneration.REPLACEMENT_SELECTION)
+                ? ReplacementSelectionHeap.bytesPerRecord() : RecordArena.bytesPerRecord();
+        long writeBuffer = streamBytes(Math.min(PHASE1_WRITE_BUFFER, bufferBytes(bytes / 16, 1)));
+        return expected * perRecord * (pipelined ? ParallelRunGenerator.ARENAS : 1) <= bytes - writeBuffer;
+    }
+
+    // Phase 1 on `bytes` of the budget: records per memory load are what is left after the run writer's buffers,
+    // at the sort buffer's real per record footprint. One span per relation, e.g. "phase1 T1"
+    private List<File> createInitialRuns(String filePath, String prefix, long bytes, int threads) throws IOException {
+        String rel = new File(prefix).getName();
+        if (manifest != null && manifest.hasRuns(rel)) {
+            List<File> runs = manifest.runs(rel);
+            System.out.println(rel + ": resuming after pass " + manifest.pass(rel) + " with " + runs.size() + " runs");
+            return runs;
+        }
+        int writeBuffer = Math.min(PHASE1_WRITE_BUFFER, bufferBytes(bytes / 16, 1));
+        long perRecord = (runGeneration == RunGeneration.REPLACEMENT_SELECTION)
+                ? ReplacementSelectionHeap.bytesPerRecord() : RecordArena.bytesPerRecord();
+        long capacity = Math.min(RecordArena.maxCapacity(), (bytes - streamBytes(writeBuffer)) / perRecord);
+        if (capacity < 1) {
+            throw new IllegalStateException("Memory budget share of " + bytes + " bytes is too small for Phase 1");
+        }
+        Long expected = recordEstimates.get(filePath);
+        if (expected != null) {
+            // the load-sort pipeline splits its capacity over several arenas, each should still hold the input
+            boolean pipelined = threads > 1 && runGeneration == RunGeneration.LOAD_SORT;
+            capacity = Math.min(capacity, Math.max(1, pipelined ? expected * ParallelRunGenerator.ARENAS : expected));
+        }
+        MemoryBudget.Lease lease = budget.reserve(capacity * perRecord + streamBytes(writeBuffer));
+        try (lease; IOTracker span = io.span(IOTracker.Kind.PHASE, "phase1 " + rel)) {
+            List<File> runs = generateRuns(filePath, prefix, (int) capacity, writeBuffer, threads, span);
+            span.setRuns(0, runs.size());
+            if (manifest != null) manifest.record(rel, 0, runs);
+            return runs;
+        }
+    }
+
+    private List<File> generateRuns(String filePath, String prefix, int capacity, int writeBuffer, int threads,
+                                    IOTracker span) throws IOException {
+        if (runGeneration == RunGeneration.REPLACEMENT_SELECTION) {
+            return createInitialRunsReplacementSelection(filePath, prefix, capacity, writeBuffer, span);
+        }
+        if (threads > 1) {
+            return new ParallelRunGenerator(span, capacity, threads, writeBuffer, aggregate, compression,
+                    sortAlgorithm, sortKey).createRuns(filePath, n -> runFile(prefix, n));
+        }
         List<File> runs = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            List<Record> buffer = new ArrayList<>(maxRecordsInMem);
-            String line;
+        try (MappedRecordReader in = new MappedRecordReader(filePath, span, sortKey)) {
+            RecordArena buffer = new RecordArena(capacity);
+            buffer.setSortAlgorithm(sortAlgorithm);
             int runCount = 0;
 
-            while ((line = br.readLine()) != null) {
-                io.noteReadLine();
-                buffer.add(new Record(line));
-                if (buffer.size() >= maxRecordsInMem) {
-                    runs.add(writeRun(buffer, prefix + "_run" + (++runCount) + ".txt"));
-                    buffer.clear();
-                }
+            // each fill parses input until the buffer is full or the input ends, the last run may be short
+            while (in.fill(buffer, null) > 0) {
+                runs.add(writeRun(buffer, runFile(prefix, ++runCount), writeBuffer, span));
+                buffer.clear();
+            }
+        }
+        span.flushPartialBlocks();
+        return runs;
+    }
+
+    private List<File> createInitialRunsReplacementSelection(String filePath, String prefix, int capacity,
+                                                           int writeBuffer, IOTracker span) throws IOException {
+        List<File> runs = new ArrayList<>();
+        ReplacementSelectionHeap heap = new ReplacementSelectionHeap(capacity);
+        byte[] data = heap.data();
+        byte[] incoming = new byte[Record.TOTAL_WIDTH];
+        final int W = Record.TOTAL_WIDTH;
+
+        try (MappedRecordReader in = new MappedRecordReader(filePath, span, sortKey)) {
+            // fill memory
+            while (heap.size() < heap.capacity() && in.next(data, heap.size() * W)) {
+                heap.push(heap.size(), 0);
             }
-            // leftover
-            if (!buffer.isEmpty()) {
-                runs.add(writeRun(buffer, prefix + "_run" + (++runCount) + ".txt"));
+
+            int currentRun = -1;
+            RunWriter bw = null;
+            try {
+                while (heap.size() > 0) {
+                    int slot = heap.topSlot();
+                    if (heap.topRun() != currentRun) {
+                        // every record left in the heap belongs to a later run, start a new file
+                        if (bw != null) {
+                            bw.close();
+                            span.flushPartialBlocks();
+                        }
+                        currentRun = heap.topRun();
+                        File f = runFile(prefix, runs.size() + 1);
+                        runs.add(f);
+                        bw = new RunWriter(f, span, writeBuffer, aggregate, compression);
+                    }
+                    bw.write(data, slot * W);
+
+                    // refill the freed slot: a record smaller than the one just written must wait for the next run
+                    if (in.next(incoming, 0)) {
+                        int run = (Record.compareBytes(incoming, 0, data, slot * W) >= 0) ? currentRun : currentRun + 1;
+                        System.arraycopy(incoming, 0, data, slot * W, W);
+                        heap.replaceTop(run);
+                    } else {
+                        heap.pop();
+                    }
+                }
+            } finally {
+                if (bw != null) bw.close();
             }
         }
-        io.flushPartialBlocks();
+        span.flushPartialBlocks();
         return runs;
     }
 
@@ -46,128 +307,216 @@ public class TPMMS {
             return null;
         }
 
+        List<File> currentRuns = mergeDownTo(initialRuns, relName, 1);
+
+        File finalRun = currentRuns.get(0);
+        System.out.println("\n---- " + relName + " Phase 2 merge sort done; final sorted file: "
+                + finalRun.getName() + " ");
+
+        return finalRun;
+    }
+
+    // Runs merge passes until at most maxRuns remain, so a caller can do the last merge itself
+    public List<File> mergeDownTo(List<File> initialRuns, String relName, int maxRuns) throws IOException {
+        try (IOTracker span = io.span(IOTracker.Kind.PHASE, "phase2 " + relName)) {
+            span.setFanIn(getFanIn());
+            List<File> runs = mergeDownTo(initialRuns, relName, maxRuns, span);
+            span.setRuns(initialRuns.size(), runs.size());
+            return runs;
+        }
+    }
+
+    private List<File> mergeDownTo(List<File> initialRuns, String relName, int maxRuns, IOTracker phase)
+            throws IOException {
         List<File> currentRuns = new ArrayList<>(initialRuns);
-        int pass = 0;
+        int target = Math.max(1, maxRuns);
+        int pass = (manifest == null) ? 0 : manifest.pass(relName);
 
         System.out.println("\n--------------"+relName+ " Phase 2: external merge sort------------");
 
-        System.out.println("Initial runs r = " + currentRuns.size());
+        System.out.println("Initial runs r = " + currentRuns.size() + ", fan in K = " + getFanIn()
+                + ", target runs = " + target);
 
-        while (currentRuns.size() > 1) {
+        while (currentRuns.size() > target) {
             pass++;
             System.out.println("\n------------- " + relName + " Pass " + pass + " ");
             System.out.println("  Input runs this pass: " + currentRuns.size());
 
             List<File> nextRuns = new ArrayList<>();
-
-            // Merge runs in PAIRS
-            for (int i = 0; i < currentRuns.size(); i += 2) {
-                if (i + 1 < currentRuns.size()) {
-                    File left  = currentRuns.get(i);
-                    File right = currentRuns.get(i + 1);
-
-                    System.out.println("    Merging runs " + i + " and " + (i + 1)+" "
-                            +  left.getName() + ", " + right.getName() );
-
-                    File merged = mergeTwoRuns(left, right);
-                    nextRuns.add(merged);
-
-
+            int needed = currentRuns.size() - target + 1;
+            // fan in is recomputed every pass from the free budget, a single last merge gets all of it
+            long free = budget.available();
+            int k = fanIn(free);
+
+            try (IOTracker passSpan = phase.span(IOTracker.Kind.PASS, "pass " + pass)) {
+                if (needed <= k) {
+                    // last pass: merge only the smallest runs needed to reach the target
+                    passSpan.setFanIn(needed);
+                    currentRuns.sort(Comparator.comparingLong(File::length));
+                    List<File> group = currentRuns.subList(0, needed);
+                    System.out.println("    Merging " + needed + " smallest runs (" + needed + "-way)");
+                    nextRuns.add(mergeGroup(new ArrayList<>(group), passSpan, "merge " + needed + " smallest", pass));
+                    nextRuns.addAll(currentRuns.subList(needed, currentRuns.size()));
                 } else {
-                    System.out.println("    Carrying over run " + i + "  " + currentRuns.get(i).getName() + "");
-                    nextRuns.add(currentRuns.get(i));
+                    // Merge up to k runs at a time, independent groups run concurrently on equal budget shares
+                    // no more workers than the budget has room for a 2-way merge each
+                    long fit = Math.max(1, free / (3 * streamBytes(BLOCK_BYTES)));
+                    int workers = (int) Math.min(fit, Math.min(threads, (currentRuns.size() + k - 1) / k));
+                    long share = free / workers;
+                    int groupK = fanIn(share);
+                    int bufferBytes = bufferBytes(share, groupK + 1);
+                    passSpan.setFanIn(groupK);
+                    System.out.println("    " + workers + " workers, fan in " + groupK + " each");
+                    int outputPass = pass;
+                    ExecutorService pool = Executors.newFixedThreadPool(workers);
+                    try {
+                        List<Future<File>> merged = new ArrayList<>();
+                        for (int i = 0; i < currentRuns.size(); i += groupK) {
+                            List<File> group = new ArrayList<>(
+                                    currentRuns.subList(i, Math.min(i + groupK, currentRuns.size())));
+                            if (group.size() > 1) {
+                                String task = "merge " + i + "-" + (i + group.size() - 1);
+                                System.out.println("    Merging runs " + i + " to " + (i + group.size() - 1)
+                                        + " (" + group.size() + "-way)");
+                                merged.add(pool.submit(() -> {
+                                    MemoryBudget.Lease lease =
+                                            budget.reserve((group.size() + 1) * streamBytes(bufferBytes));
+                                    try (lease; IOTracker span = passSpan.span(IOTracker.Kind.TASK, task)) {
+                                        span.setFanIn(group.size());
+                                        span.setRuns(group.size(), 1);
+                                        return mergeRuns(group, bufferBytes, span, outputPass);
+                                    }
+                                }));
+                            } else {
+                                System.out.println("    Carrying over run " + i + "  " + group.get(0).getName() + "");
+                                merged.add(CompletableFuture.completedFuture(group.get(0)));
+                            }
+                        }
+                        nextRuns.addAll(awaitAll(merged));
+                    } finally {
+                        pool.shutdownNow();
+                    }
                 }
+                passSpan.setRuns(currentRuns.size(), nextRuns.size());
             }
+            if (manifest != null) manifest.record(relName, pass, nextRuns);
 
             currentRuns = nextRuns;
             System.out.println("  After pass " + pass + " there are " + currentRuns.size() + " runs.");
         }
 
-        File finalRun = currentRuns.get(0);
-        System.out.println("\n---- " + relName + " Phase 2 merge sort done in " + pass
-                + " passes; final sorted file: " + finalRun.getName() + " ");
-
-        return finalRun;
+        System.out.println("---- " + relName + " merged down to " + currentRuns.size() + " runs in "
+                + pass + " passes");
+        return currentRuns;
     }
 
-    private File mergeTwoRuns(File leftFile, File rightFile) throws IOException {
-        File out = File.createTempFile("tpmms_", ".tmp");
+    // a single merge on the whole free budget: split by key range across threads when it is big enough and every
+    // range still gets a block per stream. Aggregated and compressed slices have unknown output sizes, so they
+    // cannot be written in place and stay single threaded
+    private File mergeGroup(List<File> runs, IOTracker passSpan, String task, int pass) throws IOException {
+        try (IOTracker span = passSpan.span(IOTracker.Kind.TASK, task)) {
+            span.setFanIn(runs.size());
+            span.setRuns(runs.size(), 1);
+            long free = budget.available();
+            int streams = runs.size() + 1;
+            int ranges = 1;
+            if (!aggregate && compression == RunCodec.Kind.NONE) {
+                long slots = 0;
+                for (File run : runs) slots += RunReader.slotCount(run);
+                long fit = free / (streams * streamBytes(BLOCK_BYTES));
+                ranges = (int) Math.min(Math.min(threads, fit), slots / MIN_SLOTS_PER_RANGE);
+            }
+            int bufferBytes = bufferBytes(free, streams * Math.max(1, ranges));
+            MemoryBudget.Lease lease = budget.reserve((long) streams * Math.max(1, ranges) * streamBytes(bufferBytes));
+            try (lease) {
+                if (ranges > 1) {
+                    return mergeRunsByKeyRange(runs, ranges, bufferBytes, span, pass);
+                }
+                return mergeRuns(runs, bufferBytes, span, pass);
+            }
+        }
+    }
 
-        try (BufferedReader br1 = new BufferedReader(new FileReader(leftFile));
-             BufferedReader br2 = new BufferedReader(new FileReader(rightFile));
-             BufferedWriter bw = new BufferedWriter(new FileWriter(out))) {
+    // each worker merges one key range of all runs and writes it at its own offset of the output
+    private File mergeRunsByKeyRange(List<File> runs, int ranges, int bufferBytes, IOTracker task,
+                                     int pass) throws IOException {
+        KeyRangeSplitter splitter = new KeyRangeSplitter(runs, ranges);
+        int n = splitter.ranges();
+        System.out.println("      split into " + n + " key ranges");
+        File out = newRunFile(pass);
+
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<File>> parts = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                final int range = i;
+                parts.add(pool.submit(() -> {
+                    try (IOTracker span = task.span(IOTracker.Kind.TASK, "range " + range)) {
+                        span.setFanIn(runs.size());
+                        try (KWayMerger merger = new KWayMerger(splitter.openRange(range, span, bufferBytes));
+                             RunWriter bw = new RunWriter(out, span, bufferBytes, splitter.outputSlot(range))) {
+                            byte[] r;
+                            while ((r = merger.next()) != null) {
+                                bw.write(r);
+                            }
+                        }
+                        span.flushPartialBlocks();
+                    }
+                    return out;
+                }));
+            }
+            awaitAll(parts);
+        } finally {
+            pool.shutdownNow();
+        }
+        return out;
+    }
 
-            String l1 = br1.readLine();
-            if (l1 != null) io.noteReadLine();
-            String l2 = br2.readLine();
-            if (l2 != null) io.noteReadLine();
+    // Phase 1 run number n of a relation
+    private File runFile(String prefix, int n) {
+        String name = prefix + "_run" + n + ".run";
+        return spill == null ? new File(name) : spill.newFile(new File(name).getName(), 0);
+    }
 
-            Record r1 = (l1 != null) ? new Record(l1) : null;
-            Record r2 = (l2 != null) ? new Record(l2) : null;
+    // output of a merge in `pass`, on the other set of spill directories than the pass reads
+    private File newRunFile(int pass) throws IOException {
+        return spill == null ? File.createTempFile("tpmms_", ".tmp") : spill.newTempFile(pass);
+    }
 
-            //  2 way merge of sorted sequences
-            while (r1 != null && r2 != null) {
-                if (r1.compareTo(r2) <= 0) {
-                    bw.write(r1.raw);
-                    bw.newLine();
-                    io.noteWriteLine();
+    private File mergeRuns(List<File> runs, int bufferBytes, IOTracker span, int pass) throws IOException {
+        File out = newRunFile(pass);
 
-                    l1 = br1.readLine();
-                    if (l1 != null) io.noteReadLine();
-                    r1 = (l1 != null) ? new Record(l1) : null;
-                } else {
-                    bw.write(r2.raw);
-                    bw.newLine();
-                    io.noteWriteLine();
+        try (KWayMerger merger = new KWayMerger(runs, span, bufferBytes, aggregate);
+             RunWriter bw = new RunWriter(out, span, bufferBytes, aggregate, compression)) {
 
-                    l2 = br2.readLine();
-                    if (l2 != null) io.noteReadLine();
-                    r2 = (l2 != null) ? new Record(l2) : null;
+            //  K way merge of sorted sequences
+            if (aggregate) {
+                byte[] key = new byte[Record.TOTAL_WIDTH];
+                int count;
+                while ((count = merger.nextGroup(key)) > 0) {
+                    bw.write(key, 0, count);
+                }
+            } else {
+                byte[] r;
+                while ((r = merger.next()) != null) {
+                    bw.write(r);
                 }
-            }
-
-            // Drain leftovers from whichever run still has tuples
-            while (r1 != null) {
-                bw.write(r1.raw);
-                bw.newLine();
-                io.noteWriteLine();
-
-                l1 = br1.readLine();
-                if (l1 != null) io.noteReadLine();
-                r1 = (l1 != null) ? new Record(l1) : null;
-            }
-
-            while (r2 != null) {
-                bw.write(r2.raw);
-                bw.newLine();
-                io.noteWriteLine();
-
-                l2 = br2.readLine();
-                if (l2 != null) io.noteReadLine();
-                r2 = (l2 != null) ? new Record(l2) : null;
             }
         }
 
         // Count partial blocks for this merge
-        io.flushPartialBlocks();
+        span.flushPartialBlocks();
 
         return out;
     }
 
-
-
-    private File writeRun(List<Record> buffer, String runName) throws IOException {
-        Collections.sort(buffer);
-        File f = new File(runName);
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(f))) {
-            for (Record r : buffer) {
-                bw.write(r.raw);
-                bw.newLine();
-                io.noteWriteLine();
-            }
+    private File writeRun(RecordArena buffer, File f, int writeBuffer, IOTracker span) throws IOException {
+        buffer.sort();
+        try (RunWriter bw = new RunWriter(f, span, writeBuffer, aggregate, compression)) {
+            buffer.writeSorted(bw);
         }
         // count the last partial write block for this run write
-        io.flushPartialBlocks();
+        span.flushPartialBlocks();
         return f;
     }
 
@@ -0,0 +1,60 @@
+package util;
+
+/**
+ * HyperLogLog distinct count sketch over 64-bit hashes. 2^p one-byte registers keep the longest run of leading zeros
+ * seen per bucket; sketches of separate chunks or files merge by taking the register maxima. The relative error is
+ * about 1.04 / sqrt(2^p), 0.8% at the default p = 14 (16 KB).
+ */
+public final class HyperLogLog {
+    public static final int DEFAULT_PRECISION = 14;
+
+    private final int p;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public HyperLogLog(int p) {
+        if (p < 4 || p > 18) throw new IllegalArgumentException("HyperLogLog precision must be in [4, 18]: " + p);
+        this.p = p;
+        this.registers = new byte[1 << p];
+    }
+
+    // hash must be well mixed, e.g. a SplitMix64 finalizer output
+    public void add(long hash) {
+        int bucket = (int) (hash >>> (64 - p));
+        int rank = Long.numberOfLeadingZeros((hash << p) | (1L << (p - 1))) + 1;
+        if (rank > registers[bucket]) registers[bucket] = (byte) rank;
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.p != p) {
+            throw new IllegalArgumentException("Cannot merge HyperLogLog sketches of different precision");
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) registers[i] = other.registers[i];
+        }
+    }
+
+    public HyperLogLog copy() {
+        HyperLogLog h = new HyperLogLog(p);
+        h.merge(this);
+        return h;
+    }
+
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * m / sum;
+        // linear counting while many buckets are still empty
+        if (e <= 2.5 * m && zeros > 0) e = m * Math.log((double) m / zeros);
+        return Math.round(e);
+    }
+}
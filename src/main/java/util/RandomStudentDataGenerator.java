@@ -1,16 +1,41 @@
 package util;
 
-import java.io.BufferedWriter;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Random;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Writes benchmark inputs in the record layout TPMMS reads: fixed width lines of 99 characters plus '\n'. Every record
+ * is a pure function of the seed and its line number, so the file is cut into chunks that threads fill as bytes and
+ * write at their own offsets, and the output does not depend on the thread count.
+ * <p>
+ * Knobs, as system properties:
+ * <ul>
+ *   <li>gen.seed - seed, T1 and T2 must share it for cross duplicates (default 42)</li>
+ *   <li>gen.stream - relation number, e.g. 1 for T1 and 2 for T2 (default 1)</li>
+ *   <li>gen.dups - fraction of lines that repeat an earlier line of the same file (default 0)</li>
+ *   <li>gen.shared - fraction of the other lines taken from a pool common to all streams, so T1 and T2 share them
+ *   (default 0)</li>
+ *   <li>gen.skew - Zipf exponent for which earlier line a duplicate repeats, 0 for uniform; higher makes a few
+ *   records hot (default 0)</li>
+ *   <li>gen.order - RANDOM, SORTED or REVERSE student IDs within each segment (default RANDOM)</li>
+ *   <li>gen.segments - number of equal length sorted or reverse sorted segments (default 1)</li>
+ *   <li>gen.threads - generating threads (default all processors)</li>
+ * </ul>
+ */
 public class RandomStudentDataGenerator {
 
     // Default number of records
-    private static final int DEFAULT_RECORD_COUNT = 1_000_000;
+    private static final long DEFAULT_RECORD_COUNT = 1_000_000;
 
     // 1. Student ID: int(08)
     // 2. First Name: char(10)
@@ -19,6 +44,7 @@ public class RandomStudentDataGenerator {
     // 5. Program: int(03)
     // 6. SIN Number: int(09)
     // 7. Address: char(56)
+    // same layout as Record, 8+10+10+3+3+9+56 = 99 characters
     private static final int ID_LEN = 8;
     private static final int FIRST_NAME_LEN = 10;
     private static final int LAST_NAME_LEN = 10;
@@ -26,6 +52,18 @@ public class RandomStudentDataGenerator {
     private static final int PROGRAM_LEN = 3;
     private static final int SIN_LEN = 9;
     private static final int ADDRESS_LEN = 56;
+    private static final int RECORD_LEN = ID_LEN + FIRST_NAME_LEN + LAST_NAME_LEN + DEPT_LEN + PROGRAM_LEN + SIN_LEN
+            + ADDRESS_LEN;
+    private static final int LINE_LEN = RECORD_LEN + 1;
+
+    private static final int CHUNK_RECORDS = 1 << 16; // ~6.5 MB of lines per write
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    private static final long DUP_SALT = 0x5DEECE66DL;
+    private static final long PICK_SALT = 0x2545F4914F6CDD1DL;
+    private static final long SHARED_SALT = 0x632BE59BD9B4E019L;
+
+    /** Student ID order within a segment */
+    public enum Order { RANDOM, SORTED, REVERSE }
 
     // Some sample names and street names to keep things readable
     private static final String[] FIRST_NAMES = {
@@ -48,117 +86,208 @@ public class RandomStudentDataGenerator {
             "St", "Ave", "Blvd", "Rd"
     };
 
-    public static void main(String[] args) {
-        String outputFile = (args.length > 0) ? args[0] : "src/inputfile/T2_records_1m.txt";
-        int recordCount = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_RECORD_COUNT;
+    private static final int[] DEPARTMENTS = {444, 555, 666, 777};
 
-        // Use ASCII so that 1 char
-        try (BufferedWriter writer = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.US_ASCII))) {
+    private static final byte[][] FIRST = padded(FIRST_NAMES, FIRST_NAME_LEN);
+    private static final byte[][] LAST = padded(LAST_NAMES, LAST_NAME_LEN);
+    // " <street> <type>, Montreal, QC, H3G 1M8", written after the house number
+    private static final byte[][] STREETS = streets();
 
-            Random random = new Random();
+    private final long seed;
+    private final long stream;
+    private final double dups;
+    private final double shared;
+    private final double skew;
+    private final Order order;
+    private final long segmentLength;
 
-            for (int i = 0; i < recordCount; i++) {
-                String record = generateRecord(random);
-                writer.write(record);
-                writer.newLine();
-                // each tuple on its own line
-            }
+    public RandomStudentDataGenerator(long seed, long stream, double dups, double shared, double skew, Order order,
+                                      int segments, long recordCount) {
+        if (dups < 0 || dups >= 1 || shared < 0 || shared > 1 || skew < 0 || segments < 1) {
+            throw new IllegalArgumentException("Need 0 <= dups < 1, 0 <= shared <= 1, skew >= 0 and segments >= 1");
+        }
+        this.seed = seed;
+        this.stream = stream;
+        this.dups = dups;
+        this.shared = shared;
+        this.skew = skew;
+        this.order = order;
+        this.segmentLength = Math.max(1, (recordCount + segments - 1) / segments);
+    }
 
-            System.out.println("Generated " + recordCount + " records into " + outputFile);
+    public static void main(String[] args) {
+        String outputFile = (args.length > 0) ? args[0] : "src/inputfile/T2_records_1m.txt";
+        long recordCount = (args.length > 1) ? Long.parseLong(args[1]) : DEFAULT_RECORD_COUNT;
+        int threads = Integer.getInteger("gen.threads", Runtime.getRuntime().availableProcessors());
 
+        RandomStudentDataGenerator gen = new RandomStudentDataGenerator(
+                Long.getLong("gen.seed", 42),
+                Long.getLong("gen.stream", 1),
+                Double.parseDouble(System.getProperty("gen.dups", "0")),
+                Double.parseDouble(System.getProperty("gen.shared", "0")),
+                Double.parseDouble(System.getProperty("gen.skew", "0")),
+                Order.valueOf(System.getProperty("gen.order", "RANDOM")),
+                Integer.getInteger("gen.segments", 1),
+                recordCount);
+
+        try {
+            long start = System.currentTimeMillis();
+            gen.write(Path.of(outputFile), recordCount, threads);
+            long ms = Math.max(1, System.currentTimeMillis() - start);
+            System.out.println("Generated " + recordCount + " records into " + outputFile + " in " + ms + " ms ("
+                    + (recordCount * LINE_LEN / 1024 / 1024 * 1000 / ms) + " MB/s)");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static String generateRecord(Random random) {
-        StringBuilder sb = new StringBuilder();
-
-        // 1. Student ID: 8 digits
-        String studentId = randomNumericString(random, ID_LEN, false);
-        sb.append(studentId);
-
-        // 2. First Name: char(10)
-        String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
-        sb.append(padOrTruncate(firstName, FIRST_NAME_LEN));
+    // the file is truncated and rewritten; chunk c holds lines [c * CHUNK_RECORDS, (c + 1) * CHUNK_RECORDS)
+    public void write(Path file, long recordCount, int threads) throws IOException {
+        long chunks = (recordCount + CHUNK_RECORDS - 1) / CHUNK_RECORDS;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Future<?>> pending = new ArrayList<>();
+            ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[CHUNK_RECORDS * LINE_LEN]);
+            for (long c = 0; c < chunks; c++) {
+                long first = c * CHUNK_RECORDS;
+                int n = (int) Math.min(CHUNK_RECORDS, recordCount - first);
+                pending.add(pool.submit(() -> {
+                    byte[] buf = buffers.get();
+                    for (int i = 0; i < n; i++) {
+                        generate(first + i, buf, i * LINE_LEN);
+                        buf[i * LINE_LEN + RECORD_LEN] = '\n';
+                    }
+                    ByteBuffer b = ByteBuffer.wrap(buf, 0, n * LINE_LEN);
+                    long pos = first * LINE_LEN;
+                    while (b.hasRemaining()) pos += ch.write(b, pos);
+                    return null;
+                }));
+            }
+            for (Future<?> f : pending) f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating " + file, e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-        // 3. Last Name: char(10)
-        String lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
-        sb.append(padOrTruncate(lastName, LAST_NAME_LEN));
+    // writes line `line` of the file into dst[off, off + RECORD_LEN)
+    public void generate(long line, byte[] dst, int off) {
+        // a duplicate takes the content of an earlier line, which may be a duplicate itself
+        long i = line;
+        while (i > 0 && unit(mix(seed ^ stream * GOLDEN ^ i * DUP_SALT)) < dups) {
+            i = pick(i, mix(seed ^ stream * GOLDEN ^ i * PICK_SALT));
+        }
+        // line i of every stream draws the same shared decision, so shared lines line up across T1 and T2
+        long space = (unit(mix(seed ^ i * SHARED_SALT)) < shared) ? 0 : stream;
+        writeRecord(i, mix(seed ^ space * GOLDEN ^ mix(i)), dst, off);
+    }
 
-        // 4. Department: int(03)
-        int[] departments = {444, 555, 666, 777};
-        int dept = departments[random.nextInt(departments.length)];
-        sb.append(padLeftWithZeros(Integer.toString(dept), DEPT_LEN));
+    // an earlier line in [0, i), Zipf distributed over the line number when skewed so the first lines are hot
+    private long pick(long i, long h) {
+        double u = unit(h);
+        if (skew == 0) return (long) (u * i);
+        double r;
+        if (Math.abs(skew - 1) < 1e-9) {
+            r = Math.pow(i + 1.0, u);
+        } else {
+            double a = 1 - skew;
+            r = Math.pow((Math.pow(i + 1.0, a) - 1) * u + 1, 1 / a);
+        }
+        return Math.min(i - 1, Math.max(0, (long) r - 1));
+    }
 
-        // 5. Program: int(03),
-        int program = 100 + random.nextInt(900);
-        sb.append(padLeftWithZeros(Integer.toString(program), PROGRAM_LEN));
+    private void writeRecord(long i, long state, byte[] b, int p) {
+        // 1. Student ID: 8 digits
+        if (order == Order.RANDOM) {
+            state = mix(state + GOLDEN);
+            writeDigits(b, p, 10_000_000 + Math.floorMod(state, 90_000_000L), ID_LEN);
+        } else {
+            long pos = i % segmentLength;
+            if (order == Order.REVERSE) pos = segmentLength - 1 - pos;
+            long step = Math.max(1, 89_999_999 / Math.max(1, segmentLength - 1));
+            writeDigits(b, p, 10_000_000 + Math.min(89_999_999, pos * step), ID_LEN);
+        }
+        p += ID_LEN;
 
-        // 6. SIN Number
-        String sin = randomNumericString(random, SIN_LEN, false);
-        sb.append(sin);
+        // 2. First Name: char(10), 3. Last Name: char(10)
+        state = mix(state + GOLDEN);
+        System.arraycopy(FIRST[Math.floorMod(state, FIRST.length)], 0, b, p, FIRST_NAME_LEN);
+        p += FIRST_NAME_LEN;
+        state = mix(state + GOLDEN);
+        System.arraycopy(LAST[Math.floorMod(state, LAST.length)], 0, b, p, LAST_NAME_LEN);
+        p += LAST_NAME_LEN;
 
-        // 7. Address: char(56)
-        String address = randomAddress(random);
-        sb.append(padOrTruncate(address, ADDRESS_LEN));
+        // 4. Department: int(03), 5. Program: int(03)
+        state = mix(state + GOLDEN);
+        writeDigits(b, p, DEPARTMENTS[Math.floorMod(state, DEPARTMENTS.length)], DEPT_LEN);
+        p += DEPT_LEN;
+        state = mix(state + GOLDEN);
+        writeDigits(b, p, 100 + Math.floorMod(state, 900), PROGRAM_LEN);
+        p += PROGRAM_LEN;
 
-        // sb has exactly 8+10+10+3+3+9+56 = 99 characters.
+        // 6. SIN Number: 9 digits
+        state = mix(state + GOLDEN);
+        writeDigits(b, p, 100_000_000 + Math.floorMod(state, 900_000_000L), SIN_LEN);
+        p += SIN_LEN;
 
-        return sb.toString();
+        // 7. Address: char(56), e.g. "1455 Maisonneuve West St, Montreal, QC, H3G 1M8"
+        state = mix(state + GOLDEN);
+        int houseNo = 100 + (int) Math.floorMod(state, 9900L);
+        int digits = houseNo < 1000 ? 3 : 4;
+        writeDigits(b, p, houseNo, digits);
+        state = mix(state + GOLDEN);
+        byte[] street = STREETS[Math.floorMod(state, STREETS.length)];
+        System.arraycopy(street, 0, b, p + digits, ADDRESS_LEN - digits);
     }
 
-    private static String randomAddress(Random random) {
-        int houseNo = 100 + random.nextInt(9900);
-        // 100–9999
-        String streetName = STREET_NAMES[random.nextInt(STREET_NAMES.length)];
-        String streetType = STREET_TYPES[random.nextInt(STREET_TYPES.length)];
+    private static void writeDigits(byte[] b, int p, long value, int width) {
+        for (int i = p + width - 1; i >= p; i--) {
+            b[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
 
-        // 1455 Maisonneuve West, Montreal, QC, H3G 1M8
-        String base = houseNo + " " + streetName + " " + streetType
-                + ", Montreal, QC, H3G 1M8";
-        return base;
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 
-    private static String padOrTruncate(String value, int length) {
-        if (value.length() == length) {
-            return value;
-        } else if (value.length() > length) {
-            return value.substring(0, length);
-        } else {
-            StringBuilder sb = new StringBuilder(length);
-            sb.append(value);
-            while (sb.length() < length) {
-                sb.append(' ');
-            }
-            return sb.toString();
-        }
+    private static double unit(long h) {
+        return (h >>> 11) * 0x1.0p-53;
     }
 
-    private static String padLeftWithZeros(String value, int length) {
-        if (value.length() >= length) {
-            return value.substring(0, length);
-        }
-        StringBuilder sb = new StringBuilder(length);
-        while (sb.length() + value.length() < length) {
-            sb.append('0');
-        }
-        sb.append(value);
-        return sb.toString();
+    private static byte[][] padded(String[] values, int length) {
+        byte[][] out = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) out[i] = padOrTruncate(values[i], length);
+        return out;
     }
 
-    private static String randomNumericString(Random random, int digits, boolean allowLeadingZero) {
-        StringBuilder sb = new StringBuilder(digits);
-        for (int i = 0; i < digits; i++) {
-            int digit;
-            if (i == 0 && !allowLeadingZero) {
-                digit = 1 + random.nextInt(9); // 1–9
-            } else {
-                digit = random.nextInt(10);   // 0–9
+    private static byte[][] streets() {
+        byte[][] out = new byte[STREET_NAMES.length * STREET_TYPES.length][];
+        int k = 0;
+        for (String name : STREET_NAMES) {
+            for (String type : STREET_TYPES) {
+                // padded for the longest house number, a 3 digit one leaves one more space at the end
+                out[k++] = padOrTruncate(" " + name + " " + type + ", Montreal, QC, H3G 1M8", ADDRESS_LEN - 3);
             }
-            sb.append(digit);
         }
-        return sb.toString();
+        return out;
+    }
+
+    private static byte[] padOrTruncate(String value, int length) {
+        byte[] out = new byte[length];
+        byte[] v = value.getBytes(StandardCharsets.US_ASCII);
+        int n = Math.min(v.length, length);
+        System.arraycopy(v, 0, out, 0, n);
+        for (int i = n; i < length; i++) out[i] = ' ';
+        return out;
     }
 }
@@ -1,39 +1,219 @@
 package util;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Pre-flight scan of an input file. The file is cut into byte ranges that are memory mapped and scanned in parallel,
+ * finding line breaks 8 bytes at a time; a line belongs to the range its first byte is in. One pass checks every
+ * line against the record width, counts records and blocks, estimates distinct records with a HyperLogLog sketch
+ * over the raw record bytes and samples the 8-byte key prefix at even intervals, which RangePartitioner can pick
+ * its splitters from.
+ */
 public class RecordCounter {
 
     // Number of tuples per block in your project
     private static final int TUPLES_PER_BLOCK = 40;
+    // Record.TOTAL_WIDTH
+    private static final int DEFAULT_WIDTH = 99;
+    private static final int KEY_SAMPLES = 1024;
+    private static final long MIN_CHUNK = 16L << 20;
+    private static final long MAX_CHUNK = 1L << 30;
+    private static final int MARGIN = 1 << 20; // mapped past a range for its last line
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /** What a scan found; distinct counts are of raw lines, so they can run a little above normalized ones */
+    public static final class Stats {
+        public long records;
+        public long bytes;
+        public long shortLines;       // shorter than the record width, Record rejects them
+        public long longLines;        // longer, Record keeps the first width characters
+        public long firstShortLine = -1; // 1-based line number
+        public final HyperLogLog distinct = new HyperLogLog();
+        public long[] keySamples = new long[0]; // sorted big endian prefixes of sampled records
+
+        public long blocks() {
+            return (records + TUPLES_PER_BLOCK - 1) / TUPLES_PER_BLOCK;
+        }
+
+        public long distinctEstimate() {
+            return Math.min(records, distinct.estimate());
+        }
+
+        // distinct records across this input and another
+        public long distinctWith(Stats other) {
+            HyperLogLog union = distinct.copy();
+            union.merge(other.distinct);
+            return Math.min(records + other.records, union.estimate());
+        }
+    }
 
     public static long countRecords(Path file) throws IOException {
-        long count = 0;
-        try (BufferedReader br = new BufferedReader(new FileReader(file.toFile()))) {
-            while (br.readLine() != null) {
-                count++;
+        return scan(file, 0, Runtime.getRuntime().availableProcessors()).records;
+    }
+
+    // width 0 only counts lines
+    public static Stats scan(Path file, int width, int threads) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            long chunk = Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, size / (threads * 4L) + 1));
+            int chunks = (int) Math.max(1, (size + chunk - 1) / chunk);
+            int stride = (int) Math.max(1, size / (width + 1) / KEY_SAMPLES);
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, chunks)));
+            try {
+                List<Future<Stats>> parts = new ArrayList<>();
+                for (int c = 0; c < chunks; c++) {
+                    long from = c * chunk;
+                    long to = Math.min(size, from + chunk);
+                    parts.add(pool.submit(() -> scanRange(ch, size, from, to, width, stride)));
+                }
+                Stats total = new Stats();
+                total.bytes = size;
+                List<long[]> samples = new ArrayList<>();
+                for (Future<Stats> f : parts) {
+                    Stats s = f.get();
+                    if (s.firstShortLine > 0 && total.firstShortLine < 0) {
+                        total.firstShortLine = total.records + s.firstShortLine;
+                    }
+                    total.records += s.records;
+                    total.shortLines += s.shortLines;
+                    total.longLines += s.longLines;
+                    total.distinct.merge(s.distinct);
+                    samples.add(s.keySamples);
+                }
+                total.keySamples = samples.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+                return total;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while scanning " + file, e);
+            } finally {
+                pool.shutdownNow();
             }
         }
-        return count;
     }
 
-    public static void main(String[] args) {
+    // the lines starting in [from, to)
+    private static Stats scanRange(FileChannel ch, long size, long from, long to, int width, int stride)
+            throws IOException {
+        Stats s = new Stats();
+        // from - 1 tells whether a line starts right at from
+        long mapStart = Math.max(0, from - 1);
+        long mapEnd = Math.min(size, to + MARGIN);
+        MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+        map.order(ByteOrder.LITTLE_ENDIAN); // so the first byte of a getLong is the lowest
+        int limit = (int) (mapEnd - mapStart);
+        int end = (int) (to - mapStart);
+        int p = 0;
+        if (from > 0) {
+            int nl = nextNewline(map, 0, end);
+            p = (nl < 0) ? end : nl + 1;
+        }
+        List<Long> samples = new ArrayList<>();
+        while (p < end) {
+            int nl = nextNewline(map, p, limit);
+            if (nl < 0) {
+                if (mapEnd < size) {
+                    throw new IOException("Line longer than " + MARGIN + " bytes at offset " + (mapStart + p));
+                }
+                nl = limit; // last line without a newline
+            }
+            int len = nl - p;
+            if (len > 0 && map.get(nl - 1) == '\r') len--;
+            s.records++;
+            if (width > 0) {
+                if (len < width) {
+                    s.shortLines++;
+                    if (s.firstShortLine < 0) s.firstShortLine = s.records;
+                } else {
+                    if (len > width) s.longLines++;
+                    s.distinct.add(hash(map, p, width));
+                    if ((s.records - 1) % stride == 0 && width >= Long.BYTES) {
+                        samples.add(Long.reverseBytes(map.getLong(p)));
+                    }
+                }
+            }
+            p = nl + 1;
+        }
+        s.keySamples = samples.stream().mapToLong(Long::longValue).toArray();
+        return s;
+    }
+
+    // index of the first '\n' in [from, to), -1 if none; tests 8 bytes at a time for a zero byte in x ^ '\n'
+    private static int nextNewline(MappedByteBuffer map, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long x = map.getLong(i) ^ NEWLINES;
+            long found = (x - LOW_BITS) & ~x & HIGH_BITS;
+            if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+        for (; i < to; i++) {
+            if (map.get(i) == '\n') return i;
+        }
+        return -1;
+    }
 
+    // 64-bit hash of len bytes at p, a word at a time
+    private static long hash(MappedByteBuffer map, int p, int len) {
+        long h = 0x9E3779B97F4A7C15L ^ len;
+        int i = 0;
+        for (; i + Long.BYTES <= len; i += Long.BYTES) {
+            h = Long.rotateLeft((h ^ map.getLong(p + i)) * 0xBF58476D1CE4E5B9L, 31);
+        }
+        for (; i < len; i++) {
+            h = Long.rotateLeft((h ^ map.get(p + i)) * 0x94D049BB133111EBL, 27);
+        }
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
 
+    public static void main(String[] args) {
+        Path file = Path.of((args.length > 0) ? args[0] : "src/inputfile/T1_records_1m.txt");
+        int width = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_WIDTH;
         try {
-            Path file = Path.of("src/inputfile/T1_records_1m.txt");
-            long records = countRecords(file);
-            long blocks = (records + TUPLES_PER_BLOCK - 1) / TUPLES_PER_BLOCK; // ceil
+            long start = System.currentTimeMillis();
+            Stats s = scan(file, width, Runtime.getRuntime().availableProcessors());
+            long ms = Math.max(1, System.currentTimeMillis() - start);
 
             System.out.println("File: " + file);
-            System.out.println("Total records : " + records);
-            System.out.println("Blocks (40 tuples/block): " + blocks);
+            System.out.println("Total records : " + s.records);
+            System.out.println("Blocks (40 tuples/block): " + s.blocks());
+            System.out.println("Distinct records (approx.): " + s.distinctEstimate());
+            System.out.println("Lines shorter than " + width + ": " + s.shortLines
+                    + (s.firstShortLine > 0 ? " (first at line " + s.firstShortLine + ")" : ""));
+            System.out.println("Lines longer than " + width + ": " + s.longLines);
+            if (s.keySamples.length > 0) {
+                System.out.println("Key range: " + key(s.keySamples[0]) + " .. "
+                        + key(s.keySamples[s.keySamples.length - 1]) + " (" + s.keySamples.length + " samples)");
+            }
+            System.out.println("Scanned " + s.bytes / (1024 * 1024) + " MB in " + ms + " ms");
         } catch (IOException e) {
             System.err.println("Error reading file: " + e.getMessage());
             System.exit(2);
         }
     }
+
+    private static String key(long prefix) {
+        byte[] b = new byte[Long.BYTES];
+        for (int i = 0; i < b.length; i++) b[i] = (byte) (prefix >>> (56 - 8 * i));
+        return new String(b, StandardCharsets.US_ASCII);
+    }
 }
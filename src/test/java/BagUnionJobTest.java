@@ -0,0 +1,90 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// every way of running a union against a plain in-memory one of the same inputs
+class BagUnionJobTest {
+    private static final int RECORDS = 5000;
+    private static final long MEMORY = 96 << 10; // several runs per relation and more than one merge pass
+
+    @TempDir
+    File dir;
+    private Path t1;
+    private Path t2;
+    private byte[] expected;
+
+    @BeforeEach
+    void inputs() throws IOException {
+        t1 = TestData.students(dir, "T1.txt", 13, 1, RECORDS);
+        t2 = TestData.students(dir, "T2.txt", 13, 2, RECORDS);
+        expected = reference(t1, t2);
+    }
+
+    // each distinct normalized record and its copies in both inputs, in byte order
+    private static byte[] reference(Path... inputs) throws IOException {
+        Map<String, Integer> counts = new TreeMap<>();
+        byte[] rec = new byte[Record.TOTAL_WIDTH];
+        for (Path p : inputs) {
+            for (String line : Files.readAllLines(p, StandardCharsets.US_ASCII)) {
+                Record.normalize(line, rec, 0);
+                counts.merge(new String(rec, StandardCharsets.US_ASCII), 1, Integer::sum);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        counts.forEach((r, c) -> sb.append(r).append(':').append(c).append(System.lineSeparator()));
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private BagUnionJob.Builder job(String name) {
+        return BagUnionJob.builder().t1(t1).t2(t2).output(dir.toPath().resolve(name + "/out.txt"))
+                .memory(MEMORY).index(false);
+    }
+
+    private void assertMatches(BagUnionJob.Builder job, String strategy) throws IOException {
+        BagUnionJob.Result r = job.build().run();
+        assertEquals(strategy, r.strategy);
+        assertArrayEquals(expected, Files.readAllBytes(r.output));
+        assertEquals(Files.readAllLines(r.output).size(), r.metrics.distinctTuples);
+    }
+
+    @Test
+    void defaultPipeline() throws IOException {
+        assertMatches(job("default"), "sort");
+    }
+
+    @Test
+    void multiThreadedAggregatingSort() throws IOException {
+        assertMatches(job("threads").threads(4).sortAlgorithm(RecordArena.SortAlgorithm.RADIX).aggregate(true),
+                "sort");
+    }
+
+    // the defaults scan the inputs first; without the scan, and with its estimate choosing the hash path
+    @Test
+    void preflightScan() throws IOException {
+        assertMatches(job("noscan").preflight(false), "sort");
+        assertMatches(job("auto").preflight(true).strategy(BagUnionJob.Strategy.AUTO).memory(4 << 20), "hash");
+    }
+
+    @Test
+    void partitionedInThreads() throws IOException {
+        // splitters from the pre-flight key samples, and from sampling the inputs without a scan
+        assertMatches(job("scanned").threads(2).partitions(3, BagUnionJob.Workers.THREADS), "partitioned");
+        assertMatches(job("sampled").threads(2).preflight(false).partitions(3, BagUnionJob.Workers.THREADS),
+                "partitioned");
+    }
+
+    @Test
+    void partitionedInProcesses() throws IOException {
+        assertMatches(job("processes").partitions(2, BagUnionJob.Workers.PROCESSES), "partitioned");
+    }
+}
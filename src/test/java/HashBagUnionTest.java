@@ -0,0 +1,98 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashBagUnionTest {
+    private static final int RECORDS = 3000;
+
+    @TempDir
+    File dir;
+    private Path t1;
+    private Path t2;
+    private byte[] sorted; // the same union by the sort path
+
+    @BeforeEach
+    void inputs() throws IOException {
+        t1 = TestData.students(dir, "T1.txt", 5, 1, RECORDS);
+        t2 = TestData.students(dir, "T2.txt", 5, 2, RECORDS);
+        Path out = dir.toPath().resolve("sort/out.txt");
+        BagUnionJob.builder().t1(t1).t2(t2).output(out).strategy(BagUnionJob.Strategy.SORT)
+                .memory(1 << 20).threads(1).index(false).build().run();
+        sorted = Files.readAllBytes(out);
+    }
+
+    private static IOTracker phase(IOTracker io, String name) {
+        for (IOTracker c : io.children()) {
+            if (c.name().equals(name)) return c;
+            IOTracker nested = phase(c, name);
+            if (nested != null) return nested;
+        }
+        return null;
+    }
+
+    @Test
+    void fittingTableNeverSpills() throws IOException {
+        Path out = dir.toPath().resolve("hash/out.txt");
+        BagUnionJob.Result r = BagUnionJob.builder().t1(t1).t2(t2).output(out).strategy(BagUnionJob.Strategy.HASH)
+                .memory(1 << 20).threads(1).index(false).build().run();
+        assertEquals("hash", r.strategy);
+        assertNull(phase(r.io, "hash partitions"));
+        assertArrayEquals(sorted, Files.readAllBytes(out));
+    }
+
+    // a budget far below the distinct records spills to partitions in the job's work directory
+    @Test
+    void smallBudgetSpillsAndMatchesTheSortPath() throws IOException {
+        Path out = dir.toPath().resolve("hash/out.txt");
+        File work = new File(dir, "work");
+        BagUnionJob.Result r = BagUnionJob.builder().t1(t1).t2(t2).output(out).strategy(BagUnionJob.Strategy.HASH)
+                .memory(64 << 10).threads(1).index(false).workDir(work).build().run();
+        assertEquals("hash", r.strategy);
+        IOTracker partitions = phase(r.io, "hash partitions");
+        assertNotNull(partitions);
+        assertTrue(partitions.runsIn() > 1);
+        assertArrayEquals(sorted, Files.readAllBytes(out));
+        File[] jobDirs = work.listFiles();
+        assertEquals(1, jobDirs.length);
+        assertArrayEquals(new String[0], jobDirs[0].list());
+    }
+
+    // an estimate of one distinct record splits the table 2 ways only, so partitions overflow again, repartition
+    // down to the depth limit and are then sorted in table sized runs
+    @Test
+    void repartitionsAndSortsPastTheDepthLimit() throws IOException {
+        File spillDir = new File(dir, "spill");
+        IOTracker io = new IOTracker();
+        HashBagUnion hash = new HashBagUnion(new MemoryBudget(32 << 10), io);
+        SpillDirectories spill = new SpillDirectories(List.of(spillDir), SpillDirectories.Placement.ROUND_ROBIN);
+        hash.setSpillDirectories(spill);
+        hash.setDistinctEstimate(1);
+
+        Path out = dir.toPath().resolve("hash/out.txt");
+        Files.createDirectories(out.getParent());
+        try (BufferedWriter bw = Files.newBufferedWriter(out, StandardCharsets.US_ASCII)) {
+            hash.unionAndWrite(t1.toString(), t2.toString(), bw);
+        }
+        io.close();
+
+        IOTracker partitions = phase(io, "hash partitions");
+        assertEquals(2, partitions.runsIn());
+        // more sorted runs than 2^MAX_DEPTH partitions: some were cut into several runs
+        assertTrue(partitions.runsOut() > 1 << HashBagUnion.MAX_DEPTH, "runs " + partitions.runsOut());
+        assertArrayEquals(sorted, Files.readAllBytes(out));
+        // merged runs are left for the job to clear, in the spill directory rather than the JVM temp dir
+        assertTrue(spillDir.list().length > 0);
+        spill.clear();
+        assertArrayEquals(new String[0], spillDir.list());
+    }
+}
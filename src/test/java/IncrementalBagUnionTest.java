@@ -0,0 +1,145 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncrementalBagUnionTest {
+    private static final int RECORDS = 3000;
+
+    @TempDir
+    File dir;
+    private Path t1;
+    private Path t2;
+    private Path output;
+
+    @BeforeEach
+    void inputs() throws IOException {
+        t1 = generate("T1.txt", 1, RECORDS);
+        t2 = generate("T2.txt", 2, RECORDS);
+        output = dir.toPath().resolve("out/BagUnion_Output.txt");
+        BagUnionJob.builder().t1(t1).t2(t2).output(output).memory(1 << 20).threads(1).build().run();
+    }
+
+    private Path generate(String name, long stream, int records) throws IOException {
+        return TestData.students(dir, name, 11, stream, records);
+    }
+
+    private Path write(String name, List<String> lines) throws IOException {
+        Path p = dir.toPath().resolve(name);
+        Files.write(p, lines, StandardCharsets.US_ASCII);
+        return p;
+    }
+
+    private BagUnionJob.Result fold(Path base, Path inserts, Path deletes) throws IOException {
+        BagUnionJob.Builder job = BagUnionJob.builder().output(output).memory(1 << 20).threads(1)
+                .incremental(base, (deletes == null) ? null : BagUnionJob.Source.of(deletes));
+        if (inserts != null) job.t1(inserts);
+        return job.build().run();
+    }
+
+    // the union of every input with each delete taking away one copy, a record never below 0 copies, from scratch
+    private byte[] fromScratch(List<Path> adds, List<Path> deletes) throws IOException {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (Path p : adds) for (String l : Files.readAllLines(p)) counts.merge(l, 1, Integer::sum);
+        for (Path p : deletes) for (String l : Files.readAllLines(p)) counts.merge(l, -1, Integer::sum);
+        List<String> bag = new ArrayList<>();
+        counts.forEach((line, c) -> bag.addAll(Collections.nCopies(Math.max(0, c), line)));
+        Path expected = dir.toPath().resolve("expected/out.txt");
+        BagUnionJob.builder().t1(write("bag.txt", bag)).t2(write("empty.txt", List.of())).output(expected)
+                .memory(1 << 20).threads(1).index(false).build().run();
+        return Files.readAllBytes(expected);
+    }
+
+    @Test
+    void insertsAndDeletesMatchAFullUnion() throws IOException {
+        Path inserts = generate("inserts.txt", 3, 500);
+        List<String> existing = Files.readAllLines(t1);
+        Path deletes = write("deletes.txt", existing.subList(0, 400));
+
+        BagUnionJob.Result r = fold(output, inserts, deletes);
+        assertEquals("incremental", r.strategy);
+        assertEquals(0, r.metrics.overDeletedTuples);
+        assertArrayEquals(fromScratch(List.of(t1, t2, inserts), List.of(deletes)), Files.readAllBytes(output));
+        assertTrue(Files.isRegularFile(IncrementalBagUnion.baseRunFor(output.toFile()).toPath()));
+    }
+
+    @Test
+    void insertsOnlyAndDeletesOnly() throws IOException {
+        Path inserts = generate("inserts.txt", 4, 300);
+        fold(output, inserts, null);
+        assertArrayEquals(fromScratch(List.of(t1, t2, inserts), List.of()), Files.readAllBytes(output));
+
+        Path deletes = write("deletes.txt", Files.readAllLines(t2).subList(100, 200));
+        fold(output, null, deletes);
+        assertArrayEquals(fromScratch(List.of(t1, t2, inserts), List.of(deletes)), Files.readAllBytes(output));
+    }
+
+    @Test
+    void overDeletesDropTheRecordAndAreCounted() throws IOException {
+        Map<String, Integer> copies = new TreeMap<>();
+        for (Path p : List.of(t1, t2)) for (String l : Files.readAllLines(p)) copies.merge(l, 1, Integer::sum);
+        String once = copies.entrySet().stream().filter(e -> e.getValue() == 1).findFirst().orElseThrow().getKey();
+        String absent = Files.readAllLines(generate("other.txt", 9, 50)).stream()
+                .filter(l -> !copies.containsKey(l)).findFirst().orElseThrow();
+        Path deletes = write("deletes.txt", List.of(once, once, once, absent));
+
+        BagUnionJob.Result r = fold(output, null, deletes);
+        assertEquals(2, r.metrics.overDeletedTuples);
+        assertArrayEquals(fromScratch(List.of(t1, t2), List.of(deletes)), Files.readAllBytes(output));
+    }
+
+    // a second batch reads the binary base the first one left next to the output
+    @Test
+    void binaryBaseOfAPreviousBatch() throws IOException {
+        Path inserts1 = generate("inserts1.txt", 5, 400);
+        Path deletes1 = write("deletes1.txt", Files.readAllLines(t1).subList(0, 250));
+        fold(output, inserts1, deletes1);
+
+        Path inserts2 = generate("inserts2.txt", 6, 400);
+        Path deletes2 = write("deletes2.txt", Files.readAllLines(inserts1).subList(0, 150));
+        Path base = IncrementalBagUnion.baseRunFor(output.toFile()).toPath();
+        fold(base, inserts2, deletes2);
+        assertArrayEquals(fromScratch(List.of(t1, t2, inserts1, inserts2), List.of(deletes1, deletes2)),
+                Files.readAllBytes(output));
+    }
+
+    // a projected key's text base holds only the key bytes of each line
+    @Test
+    void projectedKeyTextBase() throws IOException {
+        SortKey id = SortKey.parse("ID");
+        Path idOut = dir.toPath().resolve("id/out.txt");
+        BagUnionJob.builder().t1(t1).t2(t2).output(idOut).key(id).memory(1 << 20).threads(1).build().run();
+        assertTrue(Files.readAllLines(idOut).get(0).matches("\\d{" + Record.ID_WIDTH + "}:\\d+"));
+
+        Path inserts = generate("inserts.txt", 7, 400);
+        BagUnionJob.builder().t1(inserts).output(idOut).key(id).memory(1 << 20).threads(1)
+                .incremental(idOut, null).build().run();
+
+        List<String> both = new ArrayList<>(Files.readAllLines(t1));
+        both.addAll(Files.readAllLines(inserts));
+        Path expected = dir.toPath().resolve("expected/id.txt");
+        BagUnionJob.builder().t1(write("both.txt", both)).t2(t2).output(expected).key(id)
+                .memory(1 << 20).threads(1).build().run();
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(idOut));
+    }
+
+    @Test
+    void unsortedTextBaseIsRejected() throws IOException {
+        List<String> lines = new ArrayList<>(Files.readAllLines(output));
+        Collections.reverse(lines);
+        Path base = write("unsorted.txt", lines);
+        assertThrows(IOException.class, () -> fold(base, generate("inserts.txt", 3, 10), null));
+    }
+}
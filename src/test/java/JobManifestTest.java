@@ -0,0 +1,140 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobManifestTest {
+    private static final int RECORDS = 6000;
+    private static final long MEMORY = 256 << 10; // a few Phase 1 runs per relation
+    private static final String CONFIG = "test";
+
+    @TempDir
+    File dir;
+    private File work;
+    private String t1;
+    private String t2;
+
+    @BeforeEach
+    void inputs() throws IOException {
+        work = new File(dir, "runs");
+        t1 = new File(dir, "T1.txt").getPath();
+        t2 = new File(dir, "T2.txt").getPath();
+        TestData.students(dir, "T1.txt", 7, 1, RECORDS);
+        TestData.students(dir, "T2.txt", 7, 2, RECORDS);
+    }
+
+    private JobManifest open(String config) throws IOException {
+        SpillDirectories spill = new SpillDirectories(List.of(work), SpillDirectories.Placement.ROUND_ROBIN);
+        return JobManifest.open(work, spill, Map.of("T1", t1, "T2", t2), config);
+    }
+
+    private TPMMS sorter(JobManifest manifest) throws IOException {
+        TPMMS sorter = new TPMMS(new MemoryBudget(MEMORY), new IOTracker());
+        sorter.setThreads(1);
+        sorter.setSpillDirectories(new SpillDirectories(List.of(work), SpillDirectories.Placement.ROUND_ROBIN));
+        sorter.setManifest(manifest);
+        return sorter;
+    }
+
+    // the sort path of a job under the manifest, from wherever the manifest left each relation
+    private byte[] unite(JobManifest manifest) throws IOException {
+        TPMMS sorter = sorter(manifest);
+        List<File> r1 = sorter.mergeDownTo(sorter.createInitialRuns(t1, new File(work, "T1").getPath()), "T1", 1);
+        List<File> r2 = sorter.mergeDownTo(sorter.createInitialRuns(t2, new File(work, "T2").getPath()), "T2", 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII))) {
+            BagUnionMerger.mergeAndWrite(r1, r2, RunReader.DEFAULT_BUFFER_BYTES, false, SetOperator.Bag.UNION,
+                    SortKey.RECORD, new IOTracker(), bw, null);
+        }
+        manifest.finish();
+        return out.toByteArray();
+    }
+
+    // the same union in a scratch directory, without a manifest
+    private byte[] fresh() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BagUnionJob.builder().t1(new File(t1).toPath()).t2(new File(t2).toPath()).output(out)
+                .strategy(BagUnionJob.Strategy.SORT).memory(MEMORY).threads(1).build().run();
+        return out.toByteArray();
+    }
+
+    @Test
+    void resumesAfterAMergePassWithTheSameOutput() throws IOException {
+        // first attempt: T1 through Phase 1 and one merge pass, then the process dies
+        JobManifest first = open(CONFIG);
+        assertFalse(first.resumed());
+        TPMMS sorter = sorter(first);
+        List<File> runs = sorter.createInitialRuns(t1, new File(work, "T1").getPath());
+        assertTrue(runs.size() > 2, "needs several Phase 1 runs, got " + runs.size());
+        sorter.mergeDownTo(runs, "T1", runs.size() - 1);
+
+        JobManifest second = open(CONFIG);
+        assertTrue(second.resumed());
+        assertEquals(1, second.pass("T1"));
+        assertEquals(runs.size() - 1, second.runs("T1").size());
+        assertFalse(second.hasRuns("T2"));
+        assertArrayEquals(fresh(), unite(second));
+
+        // a finished job is not resumed
+        assertFalse(open(CONFIG).resumed());
+    }
+
+    @Test
+    void corruptRunIsRegenerated() throws IOException {
+        JobManifest first = open(CONFIG);
+        TPMMS sorter = sorter(first);
+        List<File> t1Runs = sorter.createInitialRuns(t1, new File(work, "T1").getPath());
+        sorter.createInitialRuns(t2, new File(work, "T2").getPath());
+
+        // same length, one byte changed: only the CRC32C tells
+        File damaged = t1Runs.get(0);
+        try (RandomAccessFile f = new RandomAccessFile(damaged, "rw")) {
+            f.seek(f.length() / 2);
+            int b = f.read();
+            f.seek(f.length() / 2);
+            f.write(b ^ 0x01);
+        }
+
+        JobManifest second = open(CONFIG);
+        assertTrue(second.resumed());
+        assertFalse(second.hasRuns("T1"), "damaged relation must be redone");
+        assertTrue(second.hasRuns("T2"), "intact relation is kept");
+        assertArrayEquals(fresh(), unite(second));
+    }
+
+    // a job clears only its own directory below a caller's work directory, resuming or not
+    @Test
+    void callerFilesInTheWorkDirectorySurvive() throws IOException {
+        File notes = new File(work, "notes.txt");
+        assertTrue(work.mkdirs());
+        Files.write(notes.toPath(), List.of("kept"), StandardCharsets.US_ASCII);
+        File out = new File(dir, "out/BagUnion_Output.txt");
+        for (boolean resume : new boolean[] {true, false}) {
+            BagUnionJob.builder().t1(new File(t1).toPath()).t2(new File(t2).toPath()).output(out.toPath())
+                    .memory(MEMORY).workDir(work).resume(resume).build().run();
+            assertEquals(List.of("kept"), Files.readAllLines(notes.toPath()));
+        }
+        assertArrayEquals(fresh(), Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    void changedOptionsOrInputsStartOver() throws IOException {
+        JobManifest first = open(CONFIG);
+        sorter(first).createInitialRuns(t1, new File(work, "T1").getPath());
+
+        JobManifest other = open(CONFIG + " aggregate");
+        assertFalse(other.resumed());
+        assertFalse(other.hasRuns("T1"));
+
+        sorter(other).createInitialRuns(t1, new File(work, "T1").getPath());
+        Files.write(new File(t2).toPath(), Files.readAllLines(new File(t1).toPath()), StandardCharsets.US_ASCII);
+        assertFalse(open(CONFIG + " aggregate").resumed());
+    }
+}
@@ -0,0 +1,72 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelRunGeneratorTest {
+    private static final int RECORDS = 6000;
+
+    @TempDir
+    File dir;
+
+    private TPMMS sorter(int threads) {
+        return sorter(threads, new IOTracker());
+    }
+
+    private TPMMS sorter(int threads, IOTracker io) {
+        TPMMS sorter = new TPMMS(new MemoryBudget(256 << 10), io);
+        sorter.setThreads(threads);
+        return sorter;
+    }
+
+    private Path input() throws IOException {
+        return TestData.students(dir, "T.txt", 7, 1, RECORDS);
+    }
+
+    // the pipeline's two arenas halve the run length; two relations at once must not cut runs any shorter
+    @Test
+    void pipelinedRunsAreHalfTheSortBuffer() throws IOException {
+        Path input = input();
+
+        List<File> single = sorter(1).createInitialRuns(input.toString(), new File(dir, "single").getPath());
+        List<List<File>> both = sorter(4).createInitialRuns(List.of(input.toString(), input.toString()),
+                List.of(new File(dir, "a").getPath(), new File(dir, "b").getPath()));
+        List<File> pipelined = both.get(0);
+        assertTrue(single.size() > 1, "the input should not fit one load");
+        assertTrue(pipelined.size() <= 2 * single.size(), pipelined.size() + " runs against " + single.size());
+        assertEquals(pipelined.size(), both.get(1).size());
+
+        long slots = 0;
+        for (File run : pipelined) {
+            slots += RunReader.slotCount(run);
+            try (RunReader rr = new RunReader(run, new IOTracker(), RunReader.DEFAULT_BUFFER_BYTES, false)) {
+                byte[] prev = null;
+                for (byte[] r = rr.next(); r != null; r = rr.next()) {
+                    if (prev != null) assertTrue(Record.compareBytes(prev, r) <= 0, run.getName() + " is not sorted");
+                    prev = r.clone();
+                }
+            }
+        }
+        assertEquals(RECORDS, slots);
+    }
+
+    // every run is written in a span of its own, so each one's last partial block counts once
+    @Test
+    void eachRunCountsItsOwnBlocks() throws IOException {
+        IOTracker io = new IOTracker();
+        List<File> runs = sorter(4, io).createInitialRuns(input().toString(), new File(dir, "T").getPath());
+        io.close();
+        long blocks = 0;
+        for (File run : runs) blocks += MergeMetrics.blocksForTuples(RunReader.slotCount(run));
+        assertEquals(blocks, io.totalBlocksWritten());
+
+        IOTracker phase = io.children().get(0);
+        assertEquals(runs.size(), phase.children().size());
+        for (IOTracker task : phase.children()) assertEquals(IOTracker.Kind.TASK, task.kind());
+    }
+}
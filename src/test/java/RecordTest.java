@@ -0,0 +1,62 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecordTest {
+    private static final int W = Record.TOTAL_WIDTH;
+
+    // a record line with a non-ASCII character in the first name
+    private static String line() {
+        StringBuilder sb = new StringBuilder(" 4217   Zo\u00eb");
+        while (sb.length() < W) sb.append(' ');
+        return sb.toString();
+    }
+
+    private static byte[] normalized(String line) {
+        byte[] rec = new byte[W];
+        Record.normalize(line, rec, 0);
+        return rec;
+    }
+
+    @Test
+    void nonAsciiCharacterBecomesOneQuestionMark() {
+        byte[] rec = normalized(line());
+        assertEquals("00004217", new String(rec, 0, Record.ID_WIDTH, StandardCharsets.US_ASCII));
+        assertEquals('?', rec[line().indexOf('\u00eb')]);
+        for (byte b : rec) assertTrue(b >= 0);
+    }
+
+    // the byte and mapped variants decode non-ASCII bytes the way the text reader does, then agree with the String one
+    @Test
+    void everyVariantNormalizesTheSame() {
+        byte[] utf8 = (line() + "\r").getBytes(StandardCharsets.UTF_8);
+        byte[] expected = normalized(new String(utf8, 0, utf8.length - 1, Charset.defaultCharset()));
+
+        byte[] fromBytes = new byte[W];
+        Record.normalize(utf8, 0, utf8.length, fromBytes, 0);
+        assertArrayEquals(expected, fromBytes);
+
+        byte[] fromBuffer = new byte[W];
+        Record.normalize(ByteBuffer.wrap(utf8), 0, utf8.length, fromBuffer, 0);
+        assertArrayEquals(expected, fromBuffer);
+
+        byte[] ascii = line().replace('\u00eb', 'e').getBytes(StandardCharsets.US_ASCII);
+        byte[] plain = new byte[W];
+        Record.normalize(ascii, 0, ascii.length, plain, 0);
+        assertArrayEquals(normalized(line().replace('\u00eb', 'e')), plain);
+    }
+
+    // a raw prefix sample cut inside a multi-byte character still normalizes to a splitter
+    @Test
+    void rawPrefixWithNonAsciiBytes() {
+        byte[] prefix = "123456\u00e9".getBytes(StandardCharsets.UTF_8);
+        assertEquals(Record.KEY_BYTES, prefix.length);
+        RangePartitioner p = RangePartitioner.fromSamples(List.of(new long[] {ByteBuffer.wrap(prefix).getLong()}), 2);
+        assertEquals(2, p.ranges());
+    }
+}
@@ -0,0 +1,143 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RunCodecTest {
+    private static final int W = Record.TOTAL_WIDTH;
+
+    @TempDir
+    File dir;
+
+    // sorted records with long shared prefixes, trailing spaces of every length and one with none
+    private static byte[][] records(int n) {
+        byte[][] out = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            StringBuilder sb = new StringBuilder(String.format("%08d", 10_000_000 + i / 3));
+            sb.append("Name").append(String.valueOf((char) ('a' + i % 26)).repeat(i % 50));
+            while (sb.length() < W) sb.append((i == n - 1) ? 'x' : ' ');
+            byte[] r = new byte[W];
+            Record.normalize(sb.toString(), r, 0);
+            out[i] = r;
+        }
+        Arrays.sort(out, Record::compareBytes);
+        return out;
+    }
+
+    private static byte[] slots(byte[][] recs, int[] counts) {
+        int slot = RunReader.slotWidth(counts != null);
+        byte[] b = new byte[recs.length * slot];
+        for (int i = 0; i < recs.length; i++) {
+            System.arraycopy(recs[i], 0, b, i * slot, W);
+            if (counts != null) RunCodec.putInt(b, i * slot + W, counts[i]);
+        }
+        return b;
+    }
+
+    @Test
+    void framesRoundTrip() throws IOException {
+        for (RunCodec.Kind kind : List.of(RunCodec.Kind.PREFIX, RunCodec.Kind.DEFLATE)) {
+            for (boolean counted : new boolean[] {false, true}) {
+                for (int n : new int[] {1, 2, RunCodec.FRAME_RECORDS - 1, RunCodec.FRAME_RECORDS}) {
+                    byte[][] recs = records(n);
+                    int[] counts = null;
+                    if (counted) {
+                        counts = new int[n];
+                        for (int i = 0; i < n; i++) counts[i] = (i == 0) ? Integer.MAX_VALUE : 1 + i * 1_000_003;
+                    }
+                    byte[] in = slots(recs, counts);
+                    byte[] out = new byte[in.length];
+                    try (RunCodec enc = new RunCodec(kind, counted); RunCodec dec = new RunCodec(kind, counted)) {
+                        int len = enc.encode(in, n);
+                        dec.decode(Arrays.copyOf(enc.coded(), len), len, n, out);
+                    }
+                    assertArrayEquals(in, out, kind + " counted=" + counted + " records=" + n);
+                }
+            }
+        }
+    }
+
+    @Test
+    void noneHasNoCodec() {
+        assertThrows(IllegalArgumentException.class, () -> new RunCodec(RunCodec.Kind.NONE, false));
+    }
+
+    // several frames and a short last one, through I/O buffers smaller than a frame so frames span buffers
+    @Test
+    void compressedRunsReadBackAcrossBlockBoundaries() throws IOException {
+        byte[][] recs = records(3 * RunCodec.FRAME_RECORDS + 7);
+        for (RunCodec.Kind kind : RunCodec.Kind.values()) {
+            for (boolean counted : new boolean[] {false, true}) {
+                File run = new File(dir, kind + "-" + counted + ".run");
+                IOTracker io = new IOTracker();
+                try (RunWriter w = new RunWriter(run, io, 3 * W, counted, kind)) {
+                    for (int i = 0; i < recs.length; i++) w.write(recs[i], 0, counted ? i + 1 : 1);
+                }
+                try (RandomAccessFile f = new RandomAccessFile(run, "r")) {
+                    assertEquals(kind, RunCodec.detect(f.getChannel()));
+                }
+
+                List<String> read = new ArrayList<>();
+                List<Integer> counts = new ArrayList<>();
+                try (RunReader rr = new RunReader(run, io, 3 * W, counted)) {
+                    while (rr.peek() != null) {
+                        counts.add(rr.count());
+                        read.add(new String(rr.next(), StandardCharsets.US_ASCII));
+                    }
+                }
+                assertEquals(recs.length, read.size(), kind + " counted=" + counted);
+                for (int i = 0; i < recs.length; i++) {
+                    assertEquals(new String(recs[i], StandardCharsets.US_ASCII), read.get(i));
+                    assertEquals(counted ? i + 1 : 1, counts.get(i));
+                }
+            }
+        }
+    }
+
+    // a counted writer folds adjacent copies of a record into one slot, also inside compressed frames
+    @Test
+    void countedRunsSumAdjacentDuplicates() throws IOException {
+        byte[][] recs = records(2 * RunCodec.FRAME_RECORDS);
+        File run = new File(dir, "dups.run");
+        IOTracker io = new IOTracker();
+        try (RunWriter w = new RunWriter(run, io, RunReader.DEFAULT_BUFFER_BYTES, true, RunCodec.Kind.DEFLATE)) {
+            for (byte[] r : recs) {
+                w.write(r, 0, 2);
+                w.write(r, 0, 3);
+            }
+        }
+        int n = 0;
+        try (RunReader rr = new RunReader(run, io, RunReader.DEFAULT_BUFFER_BYTES, true)) {
+            while (rr.peek() != null) {
+                assertEquals(5, rr.count());
+                assertArrayEquals(recs[n++], rr.next());
+            }
+        }
+        assertEquals(recs.length, n);
+    }
+
+    @Test
+    void corruptFrameIsRejected() throws IOException {
+        File run = new File(dir, "corrupt.run");
+        IOTracker io = new IOTracker();
+        try (RunWriter w = new RunWriter(run, io, RunReader.DEFAULT_BUFFER_BYTES, false, RunCodec.Kind.PREFIX)) {
+            for (byte[] r : records(RunCodec.FRAME_RECORDS)) w.write(r, 0);
+        }
+        try (RandomAccessFile f = new RandomAccessFile(run, "rw")) {
+            f.setLength(f.length() - 10);
+        }
+        assertThrows(IOException.class, () -> {
+            try (RunReader rr = new RunReader(run, io, RunReader.DEFAULT_BUFFER_BYTES, false)) {
+                while (rr.next() != null) { }
+            }
+        });
+    }
+}
@@ -0,0 +1,112 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SparseIndexTest {
+    private static final int W = Record.TOTAL_WIDTH;
+    private static final int ID = Record.ID_WIDTH;
+
+    @TempDir
+    File dir;
+    private File output;
+    private List<String> lines; // the output, scanned in full
+
+    @BeforeEach
+    void union() throws IOException {
+        Path t1 = TestData.students(dir, "T1.txt", 3, 1, 3000);
+        Path t2 = TestData.students(dir, "T2.txt", 3, 2, 3000);
+        // other students' records under some existing IDs, so an ID can have several lines
+        List<String> sameId = new ArrayList<>();
+        for (String l : Files.readAllLines(t1).subList(0, 50)) {
+            sameId.add(l.substring(0, ID) + "Zz" + l.substring(ID + 2));
+        }
+        Files.write(t2, sameId, StandardCharsets.US_ASCII, StandardOpenOption.APPEND);
+
+        output = dir.toPath().resolve("out.txt").toFile();
+        BagUnionJob.builder().t1(t1).t2(t2).output(output.toPath()).memory(1 << 20).threads(1).build().run();
+        lines = Files.readAllLines(output.toPath(), StandardCharsets.US_ASCII);
+        assertTrue(lines.size() > 10 * SparseIndex.BLOCK_TUPLES, "output should span many blocks");
+    }
+
+    private static String record(String line) {
+        return line.substring(0, W);
+    }
+
+    private static int count(String line) {
+        return Integer.parseInt(line.substring(W + 1));
+    }
+
+    private List<String> scan(String fromId, String toId) {
+        return lines.stream().filter(l -> l.substring(0, ID).compareTo(fromId) >= 0
+                && l.substring(0, ID).compareTo(toId) <= 0).collect(Collectors.toList());
+    }
+
+    @Test
+    void countOfEveryRecordAndOfAbsentOnes() throws IOException {
+        try (SparseIndex index = SparseIndex.open(output)) {
+            assertEquals((lines.size() + SparseIndex.BLOCK_TUPLES - 1) / SparseIndex.BLOCK_TUPLES, index.blocks());
+            for (String l : lines) assertEquals(count(l), index.count(record(l)), record(l));
+
+            assertEquals(0, index.count(" ".repeat(W)));                 // below the first record
+            assertEquals(0, index.count("99999999" + "z".repeat(W - ID))); // above the last
+            for (int i = 0; i < lines.size(); i += 97) {
+                String r = record(lines.get(i));
+                String missing = r.substring(0, W - 1) + (r.charAt(W - 1) == '~' ? '}' : '~');
+                assertEquals(0, index.count(missing), missing);
+            }
+        }
+    }
+
+    @Test
+    void byStudentIdMatchesAScan() throws IOException {
+        try (SparseIndex index = SparseIndex.open(output)) {
+            int several = 0;
+            for (int i = 0; i < lines.size(); i += 7) {
+                String id = lines.get(i).substring(0, ID);
+                List<String> expected = scan(id, id);
+                if (expected.size() > 1) several++;
+                assertEquals(expected, index.byStudentId(id), id);
+            }
+            assertTrue(several > 0, "some IDs should have several lines");
+            assertEquals(List.of(), index.byStudentId("00000000"));
+        }
+    }
+
+    @Test
+    void rangesMatchAScan() throws IOException {
+        String firstId = lines.get(0).substring(0, ID);
+        String lastId = lines.get(lines.size() - 1).substring(0, ID);
+        try (SparseIndex index = SparseIndex.open(output)) {
+            assertEquals(lines, index.range("00000000", "99999999"));
+            assertEquals(lines, index.range(firstId, lastId));
+            for (int i = 0; i + 150 < lines.size(); i += 113) {
+                String from = lines.get(i).substring(0, ID);
+                String to = lines.get(i + 150).substring(0, ID);
+                assertEquals(scan(from, to), index.range(from, to), from + ".." + to);
+                // bounds between IDs
+                String below = String.format("%08d", Long.parseLong(from) - 1);
+                assertEquals(scan(below, to), index.range(below, to));
+            }
+            assertEquals(List.of(), index.range(lastId, firstId));
+            assertEquals(List.of(), index.range("00000000", String.format("%08d", Long.parseLong(firstId) - 1)));
+        }
+    }
+
+    @Test
+    void staleIndexIsRejected() throws IOException {
+        Files.write(output.toPath(), List.of(lines.get(0)), StandardCharsets.US_ASCII, StandardOpenOption.APPEND);
+        assertThrows(IOException.class, () -> SparseIndex.open(output));
+    }
+}
@@ -0,0 +1,20 @@
+import util.RandomStudentDataGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/** Generated inputs shared by the tests */
+final class TestData {
+    private TestData() {
+    }
+
+    // dir/name with `records` student lines in random order from one stream of the generator seeded with seed; 30% of
+    // them repeat a line of the same stream and 30% one of the other streams, so two streams make a union with both
+    static Path students(File dir, String name, long seed, long stream, int records) throws IOException {
+        Path p = dir.toPath().resolve(name);
+        new RandomStudentDataGenerator(seed, stream, 0.3, 0.3, 0, RandomStudentDataGenerator.Order.RANDOM, 1, records)
+                .write(p, records, 1);
+        return p;
+    }
+}